@@ -21,22 +21,29 @@ import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Helper class to handle requests and connections to adb.
  * <p/>{@link DebugBridgeServer} is the public API to connection to adb, while {@link AdbHelper}
  * does the low level stuff.
- * <p/>This currently uses spin-wait non-blocking I/O. A Selector would be more efficient,
- * but seems like overkill for what we're doing here.
+ * <p/>This uses non-blocking I/O. When a channel is not ready, the calling thread parks until
+ * the {@link AdbSelector} thread, shared by all the channels, reports it ready.
  */
-final class AdbHelper {
+public final class AdbHelper {
 
     // public static final long kOkay = 0x59414b4fL;
     // public static final long kFail = 0x4c494146L;
 
-    static final int WAIT_TIME = 5; // spin-wait sleep, in ms
+    /**
+     * Longest time a shell command waits for output before checking whether its receiver
+     * was cancelled, in ms.
+     */
+    static final int CANCEL_CHECK_TIME = 250;
 
     static final String DEFAULT_ENCODING = "ISO-8859-1"; //$NON-NLS-1$
 
@@ -361,6 +368,49 @@ final class AdbHelper {
         String command, IDevice device, IShellOutputReceiver rcvr, long maxTimeToOutputResponse,
         TimeUnit maxTimeUnits) throws TimeoutException, AdbCommandRejectedException,
         ShellCommandUnresponsiveException, IOException {
+        executeRemoteCommand(adbSockAddr, "shell:", command, device, rcvr, //$NON-NLS-1$
+                maxTimeToOutputResponse, maxTimeUnits);
+    }
+
+    /**
+     * Executes a command on the device through the given adb service and retrieve the output.
+     * The output is handed to <var>rcvr</var> as it arrives.
+     *
+     * @param adbSockAddr the {@link InetSocketAddress} to adb.
+     * @param service the adb service, "shell:" or "exec:". The latter does not go through a pty
+     *            on the device, so binary output is received unchanged.
+     * @param command the command to execute
+     * @param device the {@link IDevice} on which to execute the command.
+     * @param rcvr the {@link IShellOutputReceiver} that will receives the output of the command
+     * @param maxTimeToOutputResponse max time between command output. A value of 0 means the
+     *            method will wait forever for command output and never throw.
+     * @param maxTimeUnits Units for non-zero {@code maxTimeToOutputResponse} values.
+     * @throws TimeoutException in case of timeout on the connection when sending the command.
+     * @throws AdbCommandRejectedException if adb rejects the command or the service
+     * @throws ShellCommandUnresponsiveException in case the command doesn't send any output
+     *            for a period longer than <var>maxTimeToOutputResponse</var>.
+     * @throws IOException in case of I/O error on the connection.
+     */
+    static void executeRemoteCommand(InetSocketAddress adbSockAddr, String service,
+        String command, IDevice device, IShellOutputReceiver rcvr, long maxTimeToOutputResponse,
+        TimeUnit maxTimeUnits) throws TimeoutException, AdbCommandRejectedException,
+        ShellCommandUnresponsiveException, IOException {
+        executeRemoteCommand(adbSockAddr, service, command,
+                device != null ? device.getSerialNumber() : null, rcvr,
+                maxTimeToOutputResponse, maxTimeUnits);
+    }
+
+    /**
+     * Same as {@link #executeRemoteCommand(InetSocketAddress, String, String, IDevice,
+     * IShellOutputReceiver, long, TimeUnit)} but the device is only known by its serial number,
+     * so it can be used without a bridge monitoring the devices.
+     *
+     * @param serial the serial number of the device, null for the only connected device.
+     */
+    public static void executeRemoteCommand(InetSocketAddress adbSockAddr, String service,
+        String command, String serial, IShellOutputReceiver rcvr, long maxTimeToOutputResponse,
+        TimeUnit maxTimeUnits) throws TimeoutException, AdbCommandRejectedException,
+        ShellCommandUnresponsiveException, IOException {
 
         long maxTimeToOutputMs = 0;
         if (maxTimeToOutputResponse > 0) {
@@ -378,20 +428,22 @@ final class AdbHelper {
             // if the device is not -1, then we first tell adb we're looking to
             // talk
             // to a specific device
-            setDevice(adbChan, device);
+            setDevice(adbChan, serial);
 
-            byte[] request = formAdbRequest("shell:" + command); //$NON-NLS-1$
+            byte[] request = formAdbRequest(service + command);
             write(adbChan, request);
 
             AdbResponse resp = readAdbResponse(adbChan, false /* readDiagString */);
             if (!resp.okay) {
-                Log.e("ddms", "ADB rejected shell command (" + command + "): " + resp.message);
+                Log.e("ddms", "ADB rejected " + service + " command (" + command + "): "
+                        + resp.message);
                 throw new AdbCommandRejectedException(resp.message);
             }
 
             byte[] data = new byte[16384];
             ByteBuffer buf = ByteBuffer.wrap(data);
-            long timeToResponseCount = 0;
+            AdbSelector selector = AdbSelector.getInstance();
+            long lastOutputTime = System.currentTimeMillis();
             while (true) {
                 int count;
 
@@ -406,22 +458,23 @@ final class AdbHelper {
                     if (rcvr != null) {
                         rcvr.flush();
                     }
-                    Log.v("ddms", "execute '" + command + "' on '" + device + "' : EOF hit. Read: "
+                    Log.v("ddms", "execute '" + command + "' on '" + serial + "' : EOF hit. Read: "
                             + count);
                     break;
                 } else if (count == 0) {
-                    try {
-                        int wait = WAIT_TIME * 5;
-                        timeToResponseCount += wait;
-                        if (maxTimeToOutputMs > 0 && timeToResponseCount > maxTimeToOutputMs) {
+                    long wait = CANCEL_CHECK_TIME;
+                    if (maxTimeToOutputMs > 0) {
+                        long remain = maxTimeToOutputMs
+                                - (System.currentTimeMillis() - lastOutputTime);
+                        if (remain <= 0) {
                             throw new ShellCommandUnresponsiveException();
                         }
-                        Thread.sleep(wait);
-                    } catch (InterruptedException ie) {
+                        wait = Math.min(wait, remain);
                     }
+                    selector.await(adbChan, SelectionKey.OP_READ, wait);
                 } else {
                     // reset timeout
-                    timeToResponseCount = 0;
+                    lastOutputTime = System.currentTimeMillis();
 
                     // send data to receiver if present
                     if (rcvr != null) {
@@ -435,6 +488,92 @@ final class AdbHelper {
         }
     }
 
+    /**
+     * Follows a command started by {@link #startRemoteCommand}. Called on the thread reading
+     * the output, so it must not block.
+     */
+    public interface CommandListener {
+        /**
+         * Whether the receiver can take more output now. The output is not read while false,
+         * which holds the device back.
+         */
+        boolean isReady();
+
+        /**
+         * The command is over: its output ended, the receiver was cancelled or the connection
+         * failed.
+         * @param error the error of the connection, or null.
+         */
+        void onEnd(IOException error);
+    }
+
+    /**
+     * Starts a command like {@link #executeRemoteCommand(InetSocketAddress, String, String,
+     * String, IShellOutputReceiver, long, TimeUnit)}, but returns as soon as adb accepted it.
+     * The output is then read by the thread of the {@link AdbSelector}, which serves all the
+     * commands started this way, and handed to <var>rcvr</var> on that thread.
+     *
+     * @param serial the serial number of the device, null for the only connected device.
+     * @param listener told when the receiver can take more output and when the command ends.
+     * @throws TimeoutException in case of timeout on the connection when sending the command.
+     * @throws AdbCommandRejectedException if adb rejects the command or the service
+     * @throws IOException in case of I/O error on the connection.
+     */
+    public static void startRemoteCommand(InetSocketAddress adbSockAddr, String service,
+            String command, String serial, final IShellOutputReceiver rcvr,
+            final CommandListener listener)
+            throws TimeoutException, AdbCommandRejectedException, IOException {
+        Log.v("ddms", "start: running " + command);
+
+        SocketChannel adbChan = SocketChannel.open(adbSockAddr);
+        boolean started = false;
+        try {
+            adbChan.configureBlocking(false);
+            setDevice(adbChan, serial);
+
+            byte[] request = formAdbRequest(service + command);
+            write(adbChan, request);
+
+            AdbResponse resp = readAdbResponse(adbChan, false /* readDiagString */);
+            if (!resp.okay) {
+                Log.e("ddms", "ADB rejected " + service + " command (" + command + "): "
+                        + resp.message);
+                throw new AdbCommandRejectedException(resp.message);
+            }
+
+            AdbSelector.getInstance().stream(adbChan, new AdbSelector.Stream() {
+                @Override
+                public boolean isReady() {
+                    return listener.isReady();
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return rcvr.isCancelled();
+                }
+
+                @Override
+                public void onData(byte[] data, int offset, int length) {
+                    rcvr.addOutput(data, offset, length);
+                }
+
+                @Override
+                public void onEnd(IOException error) {
+                    if (error == null && !rcvr.isCancelled()) {
+                        // we're at the end, we flush the output
+                        rcvr.flush();
+                    }
+                    listener.onEnd(error);
+                }
+            });
+            started = true;
+        } finally {
+            if (!started) {
+                adbChan.close();
+            }
+        }
+    }
+
     /**
      * Creates a port forwarding between a local and a remote port.
      * @param adbSockAddr the socket address to connect to adb
@@ -564,7 +703,7 @@ final class AdbHelper {
     static void read(SocketChannel chan, byte[] data, int length, int timeout)
             throws TimeoutException, IOException {
         ByteBuffer buf = ByteBuffer.wrap(data, 0, length != -1 ? length : data.length);
-        int numWaits = 0;
+        long lastProgressTime = System.currentTimeMillis();
 
         while (buf.position() != buf.limit()) {
             int count;
@@ -574,19 +713,9 @@ final class AdbHelper {
                 Log.d("ddms", "read: channel EOF");
                 throw new IOException("EOF");
             } else if (count == 0) {
-                // TODO: need more accurate timeout?
-                if (timeout != 0 && numWaits * WAIT_TIME > timeout) {
-                    Log.d("ddms", "read: timeout");
-                    throw new TimeoutException();
-                }
-                // non-blocking spin
-                try {
-                    Thread.sleep(WAIT_TIME);
-                } catch (InterruptedException ie) {
-                }
-                numWaits++;
+                awaitChannel(chan, SelectionKey.OP_READ, timeout, lastProgressTime, "read");
             } else {
-                numWaits = 0;
+                lastProgressTime = System.currentTimeMillis();
             }
         }
     }
@@ -617,7 +746,7 @@ final class AdbHelper {
     static void write(SocketChannel chan, byte[] data, int length, int timeout)
             throws TimeoutException, IOException {
         ByteBuffer buf = ByteBuffer.wrap(data, 0, length != -1 ? length : data.length);
-        int numWaits = 0;
+        long lastProgressTime = System.currentTimeMillis();
 
         while (buf.position() != buf.limit()) {
             int count;
@@ -627,23 +756,31 @@ final class AdbHelper {
                 Log.d("ddms", "write: channel EOF");
                 throw new IOException("channel EOF");
             } else if (count == 0) {
-                // TODO: need more accurate timeout?
-                if (timeout != 0 && numWaits * WAIT_TIME > timeout) {
-                    Log.d("ddms", "write: timeout");
-                    throw new TimeoutException();
-                }
-                // non-blocking spin
-                try {
-                    Thread.sleep(WAIT_TIME);
-                } catch (InterruptedException ie) {
-                }
-                numWaits++;
+                awaitChannel(chan, SelectionKey.OP_WRITE, timeout, lastProgressTime, "write");
             } else {
-                numWaits = 0;
+                lastProgressTime = System.currentTimeMillis();
             }
         }
     }
 
+    /**
+     * Waits until the channel is ready for the operation, throwing if more than
+     * <var>timeout</var> ms have passed since the last progress.
+     * @param timeout The timeout value. A timeout of zero means "wait forever".
+     */
+    private static void awaitChannel(SocketChannel chan, int op, int timeout,
+            long lastProgressTime, String opName) throws TimeoutException, IOException {
+        long wait = 0;
+        if (timeout != 0) {
+            wait = timeout - (System.currentTimeMillis() - lastProgressTime);
+            if (wait <= 0) {
+                Log.d("ddms", opName + ": timeout");
+                throw new TimeoutException();
+            }
+        }
+        AdbSelector.getInstance().await(chan, op, wait);
+    }
+
     /**
      * tells adb to talk to a specific device
      *
@@ -655,10 +792,24 @@ final class AdbHelper {
      */
     static void setDevice(SocketChannel adbChan, IDevice device)
             throws TimeoutException, AdbCommandRejectedException, IOException {
+        setDevice(adbChan, device != null ? device.getSerialNumber() : null);
+    }
+
+    /**
+     * tells adb to talk to the device of the given serial number
+     *
+     * @param adbChan the socket connection to adb
+     * @param serial The serial number of the device to talk to.
+     * @throws TimeoutException in case of timeout on the connection.
+     * @throws AdbCommandRejectedException if adb rejects the command
+     * @throws IOException in case of I/O error on the connection.
+     */
+    static void setDevice(SocketChannel adbChan, String serial)
+            throws TimeoutException, AdbCommandRejectedException, IOException {
         // if the device is not -1, then we first tell adb we're looking to talk
         // to a specific device
-        if (device != null) {
-            String msg = "host:transport:" + device.getSerialNumber(); //$NON-NLS-1$
+        if (serial != null) {
+            String msg = "host:transport:" + serial; //$NON-NLS-1$
             byte[] device_query = formAdbRequest(msg);
 
             write(adbChan, device_query);
@@ -671,6 +822,49 @@ final class AdbHelper {
         }
     }
 
+    /**
+     * Lists the serial numbers of the devices which are online, the same as "adb devices".
+     *
+     * @param adbSockAddr the {@link InetSocketAddress} to adb.
+     * @throws TimeoutException in case of timeout on the connection.
+     * @throws AdbCommandRejectedException if adb rejects the command
+     * @throws IOException in case of I/O error on the connection.
+     */
+    public static List<String> getOnlineDevices(InetSocketAddress adbSockAddr)
+            throws TimeoutException, AdbCommandRejectedException, IOException {
+        ArrayList<String> devices = new ArrayList<>();
+        try (SocketChannel adbChan = SocketChannel.open(adbSockAddr)) {
+            adbChan.configureBlocking(false);
+
+            write(adbChan, formAdbRequest("host:devices")); //$NON-NLS-1$
+
+            AdbResponse resp = readAdbResponse(adbChan, false /* readDiagString */);
+            if (!resp.okay) {
+                throw new AdbCommandRejectedException(resp.message);
+            }
+
+            byte[] lenBuf = new byte[4];
+            read(adbChan, lenBuf);
+            int len;
+            try {
+                len = Integer.parseInt(replyToString(lenBuf), 16);
+            } catch (NumberFormatException nfe) {
+                throw new IOException("Bad device list length: " + replyToString(lenBuf));
+            }
+            byte[] list = new byte[len];
+            read(adbChan, list);
+
+            // one "<serial>\t<state>" per line
+            for (String line : replyToString(list).split("\n")) { //$NON-NLS-1$
+                int tab = line.indexOf('\t');
+                if (tab > 0 && "device".equals(line.substring(tab + 1).trim())) { //$NON-NLS-1$
+                    devices.add(line.substring(0, tab));
+                }
+            }
+        }
+        return devices;
+    }
+
     /**
      * Reboot the device.
      *
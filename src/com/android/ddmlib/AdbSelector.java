@@ -0,0 +1,365 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2014 Riddle Hsu
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.ddmlib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One thread waiting on a {@link Selector} for all the non-blocking adb channels.
+ * <p/>A thread that gets nothing from a read (or cannot write) parks in
+ * {@link #await(SocketChannel, int, long)} until the selector reports the channel ready,
+ * instead of spin-waiting with {@link Thread#sleep(long)}.
+ * <p/>The key of a channel only exists while a thread is waiting on it: it is cancelled and
+ * flushed from the selector before the waiting thread is released, so the channel can be
+ * closed or switched back to blocking mode right away.
+ * <p/>A channel handed to {@link #stream(SocketChannel, Stream)} is instead read by the
+ * selector thread itself until its end, so following the output of many devices does not take
+ * a thread for each of them.
+ */
+final class AdbSelector implements Runnable {
+
+    private static AdbSelector sInstance;
+
+    private final Selector mSelector;
+
+    /** waiters posted by other threads, registered by the selector thread */
+    private final ConcurrentLinkedQueue<Waiter> mPending = new ConcurrentLinkedQueue<>();
+
+    /** waiters registered in the selector, only touched by the selector thread */
+    private final ArrayList<Waiter> mWaiting = new ArrayList<>();
+
+    /** waiters done during the current loop, released once their keys are flushed */
+    private final ArrayList<Waiter> mDone = new ArrayList<>();
+
+    /** How often the streams are checked for cancellation and for room to take more data. */
+    private static final long STREAM_CHECK_TIME = 50;
+
+    /** Reads handed to a stream in a row, before the other ready channels get their turn. */
+    private static final int STREAM_READS = 4;
+
+    /** streams posted by other threads, registered by the selector thread */
+    private final ConcurrentLinkedQueue<Reader> mPendingReaders = new ConcurrentLinkedQueue<>();
+
+    /** streams registered in the selector, only touched by the selector thread */
+    private final ArrayList<Reader> mReaders = new ArrayList<>();
+
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(16384);
+
+    /**
+     * The receiving end of a channel read by the selector thread. All the methods are called on
+     * that thread, so they must not block.
+     */
+    interface Stream {
+        /**
+         * Whether more data can be taken now. The channel is not read while false, which holds
+         * the device back through the socket.
+         */
+        boolean isReady();
+
+        boolean isCancelled();
+
+        void onData(byte[] data, int offset, int length);
+
+        /**
+         * Called once when the channel reached its end, the stream was cancelled or the read
+         * failed. The channel is closed by then.
+         * @param error the read error, or null.
+         */
+        void onEnd(IOException error);
+    }
+
+    private static final class Reader {
+        final SocketChannel mChannel;
+        final Stream mStream;
+        SelectionKey mKey;
+        /** not read until the stream is ready again */
+        boolean mParked;
+
+        Reader(SocketChannel channel, Stream stream) {
+            mChannel = channel;
+            mStream = stream;
+        }
+    }
+
+    private static final class Waiter {
+        final SocketChannel mChannel;
+        final int mOps;
+        /** {@link System#nanoTime()} deadline, or 0 to wait forever */
+        final long mDeadline;
+        SelectionKey mKey;
+        boolean mReady;
+        boolean mReleased;
+
+        Waiter(SocketChannel channel, int ops, long deadline) {
+            mChannel = channel;
+            mOps = ops;
+            mDeadline = deadline;
+        }
+
+        synchronized void release(boolean ready) {
+            mReady = ready;
+            mReleased = true;
+            notifyAll();
+        }
+
+        synchronized boolean await() {
+            while (!mReleased) {
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                }
+            }
+            return mReady;
+        }
+    }
+
+    private AdbSelector() throws IOException {
+        mSelector = Selector.open();
+    }
+
+    static synchronized AdbSelector getInstance() throws IOException {
+        if (sInstance == null) {
+            sInstance = new AdbSelector();
+            Thread t = new Thread(sInstance, "Adb Selector"); //$NON-NLS-1$
+            t.setDaemon(true);
+            t.start();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Blocks until the channel is ready for the given operation, or the timeout expired.
+     * @param chan the non-blocking channel to wait on.
+     * @param op {@link SelectionKey#OP_READ} or {@link SelectionKey#OP_WRITE}.
+     * @param timeout the maximum time to wait in ms. A timeout of zero means "wait forever".
+     * @return false if the timeout expired before the channel was ready.
+     */
+    boolean await(SocketChannel chan, int op, long timeout) {
+        long deadline = 0;
+        if (timeout > 0) {
+            deadline = System.nanoTime() + timeout * 1000000L;
+            if (deadline == 0) {
+                deadline = 1;
+            }
+        }
+        Waiter w = new Waiter(chan, op, deadline);
+        mPending.add(w);
+        mSelector.wakeup();
+        return w.await();
+    }
+
+    /**
+     * Reads the channel on the selector thread until its end, handing the data to the stream.
+     * The channel belongs to the selector from now on, it is closed at the end.
+     * @param chan the non-blocking channel to read, no thread may be waiting on it.
+     */
+    void stream(SocketChannel chan, Stream stream) {
+        mPendingReaders.add(new Reader(chan, stream));
+        mSelector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                long timeout = registerPending();
+                if (!mReaders.isEmpty() && (timeout == 0 || timeout > STREAM_CHECK_TIME)) {
+                    timeout = STREAM_CHECK_TIME;
+                }
+                if (!mSelector.selectedKeys().isEmpty()) {
+                    mSelector.selectNow();
+                } else if (timeout > 0) {
+                    mSelector.select(timeout);
+                } else {
+                    mSelector.select();
+                }
+
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Object attachment = key.attachment();
+                    if (attachment instanceof Waiter) {
+                        done((Waiter) attachment, true);
+                    } else if (attachment instanceof Reader) {
+                        read((Reader) attachment);
+                    }
+                }
+
+                for (int i = mReaders.size() - 1; i >= 0; i--) {
+                    Reader r = mReaders.get(i);
+                    if (r.mStream.isCancelled() || !r.mKey.isValid()) {
+                        end(r, null);
+                    } else if (r.mParked && r.mStream.isReady()) {
+                        r.mParked = false;
+                        r.mKey.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+
+                long now = System.nanoTime();
+                for (int i = mWaiting.size() - 1; i >= 0; i--) {
+                    Waiter w = mWaiting.get(i);
+                    if (!w.mKey.isValid()) {
+                        // channel closed under the waiter, let it find out by itself
+                        done(w, true);
+                    } else if (w.mDeadline != 0 && now - w.mDeadline >= 0) {
+                        done(w, false);
+                    }
+                }
+
+                releaseDone();
+            } catch (IOException | RuntimeException e) {
+                Log.e("ddms", "Adb selector error: " + e); //$NON-NLS-1$
+            }
+        }
+    }
+
+    /**
+     * Registers the pending waiters.
+     * @return the time in ms until the closest deadline, 0 if there is none.
+     */
+    private long registerPending() throws IOException {
+        Waiter w;
+        while ((w = mPending.poll()) != null) {
+            try {
+                w.mKey = w.mChannel.register(mSelector, w.mOps, w);
+                mWaiting.add(w);
+            } catch (ClosedChannelException | IllegalBlockingModeException
+                    | CancelledKeyException e) {
+                // the caller's next read or write reports the actual state
+                mDone.add(w);
+            }
+        }
+        releaseDone();
+
+        Reader r;
+        while ((r = mPendingReaders.poll()) != null) {
+            try {
+                r.mKey = r.mChannel.register(mSelector, SelectionKey.OP_READ, r);
+                mReaders.add(r);
+            } catch (ClosedChannelException | IllegalBlockingModeException
+                    | CancelledKeyException e) {
+                end(r, new IOException(e.toString()));
+            }
+        }
+
+        long closest = 0;
+        long now = System.nanoTime();
+        for (int i = 0, s = mWaiting.size(); i < s; i++) {
+            long deadline = mWaiting.get(i).mDeadline;
+            if (deadline != 0) {
+                long remain = Math.max(1, (deadline - now) / 1000000L + 1);
+                if (closest == 0 || remain < closest) {
+                    closest = remain;
+                }
+            }
+        }
+        return closest;
+    }
+
+    private void read(Reader r) {
+        for (int i = 0; i < STREAM_READS; i++) {
+            if (r.mStream.isCancelled()) {
+                end(r, null);
+                return;
+            }
+            if (!r.mStream.isReady()) {
+                r.mParked = true;
+                r.mKey.interestOps(0);
+                return;
+            }
+            ByteBuffer buf = mReadBuffer;
+            buf.clear();
+            int count;
+            try {
+                count = r.mChannel.read(buf);
+            } catch (IOException e) {
+                end(r, e);
+                return;
+            }
+            if (count < 0) {
+                end(r, null);
+                return;
+            } else if (count == 0) {
+                return;
+            }
+            try {
+                r.mStream.onData(buf.array(), 0, count);
+            } catch (RuntimeException e) {
+                Log.e("ddms", "Adb stream error: " + e); //$NON-NLS-1$
+                end(r, null);
+                return;
+            }
+        }
+    }
+
+    private void end(Reader r, IOException error) {
+        mReaders.remove(r);
+        try {
+            r.mChannel.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            r.mStream.onEnd(error);
+        } catch (RuntimeException e) {
+            Log.e("ddms", "Adb stream error: " + e); //$NON-NLS-1$
+        }
+    }
+
+    private void done(Waiter w, boolean ready) {
+        if (mWaiting.remove(w)) {
+            w.mReady = ready;
+            w.mKey.cancel();
+            mDone.add(w);
+        }
+    }
+
+    private void releaseDone() throws IOException {
+        if (mDone.isEmpty()) {
+            return;
+        }
+        // flush the cancelled keys, so the channels are deregistered when the waiters go
+        mSelector.selectNow();
+        for (int i = 0, s = mDone.size(); i < s; i++) {
+            Waiter w = mDone.get(i);
+            w.release(w.mKey == null || w.mReady);
+        }
+        mDone.clear();
+    }
+}
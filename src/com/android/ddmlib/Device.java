@@ -530,6 +530,15 @@ final class Device implements IDevice {
                 receiver, maxTimeToOutputResponse, maxTimeUnits);
     }
 
+    @Override
+    public void executeExecCommand(String command, IShellOutputReceiver receiver,
+            long maxTimeToOutputResponse, TimeUnit maxTimeUnits)
+            throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException,
+            IOException {
+        AdbHelper.executeRemoteCommand(AndroidDebugBridge.getSocketAddress(), "exec:", //$NON-NLS-1$
+                command, this, receiver, maxTimeToOutputResponse, maxTimeUnits);
+    }
+
     @Override
     public void createForward(int localPort, int remotePort)
             throws TimeoutException, AdbCommandRejectedException, IOException {
@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
@@ -329,6 +330,29 @@ public interface IDevice extends IShellEnabledDevice {
             throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException,
             IOException;
 
+    /**
+     * Executes a command through the adb <code>exec:</code> service, and sends the result to a
+     * <var>receiver</var>.
+     * <p/>Unlike a shell command, the output does not go through a pty on the device, so binary
+     * output is received unchanged. Devices older than Android 5.0 reject the service.
+     *
+     * @param command the command to execute
+     * @param receiver the {@link IShellOutputReceiver} that will receives the output of the
+     *            command
+     * @param maxTimeToOutputResponse the maximum amount of time during which the command is allowed
+     *            to not output any response. A value of 0 means the method will wait forever.
+     * @param maxTimeUnits Units for non-zero {@code maxTimeToOutputResponse} values.
+     * @throws TimeoutException in case of timeout on the connection when sending the command.
+     * @throws AdbCommandRejectedException if adb rejects the command or the service.
+     * @throws ShellCommandUnresponsiveException in case the command doesn't send any output
+     *            for a period longer than <var>maxTimeToOutputResponse</var>.
+     * @throws IOException in case of I/O error on the connection.
+     */
+    public void executeExecCommand(String command, IShellOutputReceiver receiver,
+            long maxTimeToOutputResponse, TimeUnit maxTimeUnits)
+            throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException,
+            IOException;
+
     /**
      * Creates a port forwarding between a local and a remote port.
      *
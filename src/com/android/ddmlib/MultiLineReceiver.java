@@ -18,6 +18,7 @@ package com.android.ddmlib;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Base implementation of {@link IShellOutputReceiver}, that takes the raw data coming from the
@@ -25,6 +26,8 @@ import java.util.ArrayList;
  * <p/>Additionally, it splits the string by lines.
  * <p/>Classes extending it must implement {@link #processNewLines(String[])} which receives
  * new parsed lines as they become available.
+ * <p/>In byte mode (see {@link #setByteMode(boolean)}) the lines are split on the raw bytes
+ * and handed to {@link #processNewLines(LineBatch)} without decoding them first.
  */
 public abstract class MultiLineReceiver implements IShellOutputReceiver {
 
@@ -36,6 +39,15 @@ public abstract class MultiLineReceiver implements IShellOutputReceiver {
     private final ArrayList<String> mArray = new ArrayList<>();
     final static Charset UTF_8 = Charset.forName("UTF-8");
 
+    private boolean mByteMode;
+
+    /** bytes of the unfinished line in byte mode, stored for next packet */
+    private byte[] mUnfinishedBytes = new byte[256];
+    private int mUnfinishedLength;
+
+    /** reused for every packet in byte mode */
+    private final LineBatch mBatch = new LineBatch();
+
     /**
      * Set the trim lines flag.
      * @param trim whether the lines are trimmed, or not.
@@ -44,13 +56,30 @@ public abstract class MultiLineReceiver implements IShellOutputReceiver {
         mTrimLines = trim;
     }
 
+    /**
+     * Set the byte mode flag.
+     * <p/>In byte mode, the packets are scanned for LF (an optional CR before it is dropped)
+     * without being converted to {@link String}, and the lines are handed to
+     * {@link #processNewLines(LineBatch)}. A line is only decoded when it is requested from
+     * the batch, and since a LF byte never appears inside a multi-byte UTF-8 sequence,
+     * characters split across packets are kept intact.
+     * @param byteMode whether the lines are split on the raw bytes, or not.
+     */
+    public void setByteMode(boolean byteMode) {
+        mByteMode = byteMode;
+    }
+
     /* (non-Javadoc)
      * @see com.android.ddmlib.adb.IShellOutputReceiver#addOutput(
      *      byte[], int, int)
      */
     @Override
     public final void addOutput(byte[] data, int offset, int length) {
-        if (!isCancelled()) {
+        if (mByteMode) {
+            if (!isCancelled()) {
+                splitBytes(data, offset, length);
+            }
+        } else if (!isCancelled()) {
             String s = new String(data, offset, length, UTF_8);
 
             // ok we've got a string
@@ -104,10 +133,54 @@ public abstract class MultiLineReceiver implements IShellOutputReceiver {
         if (mUnfinishedLine != null) {
             processNewLines(new String[] { mUnfinishedLine });
         }
+        if (mUnfinishedLength > 0) {
+            mBatch.clear();
+            mBatch.add(mUnfinishedBytes, 0, mUnfinishedLength, mTrimLines);
+            mUnfinishedLength = 0;
+            processNewLines(mBatch);
+        }
 
         done();
     }
 
+    private void splitBytes(byte[] data, int offset, int length) {
+        mBatch.clear();
+        final int end = offset + length;
+        int start = offset;
+        for (int i = offset; i < end; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            if (mUnfinishedLength > 0) {
+                // only the first line of a packet can continue the previous one, so the
+                // buffer is not touched again until the batch has been processed
+                appendUnfinished(data, start, i - start);
+                mBatch.add(mUnfinishedBytes, 0, mUnfinishedLength, mTrimLines);
+                mUnfinishedLength = 0;
+            } else {
+                mBatch.add(data, start, i - start, mTrimLines);
+            }
+            start = i + 1;
+        }
+
+        if (mBatch.size() > 0) {
+            processNewLines(mBatch);
+        }
+        if (start < end) {
+            appendUnfinished(data, start, end - start);
+        }
+    }
+
+    private void appendUnfinished(byte[] data, int offset, int length) {
+        int newLength = mUnfinishedLength + length;
+        if (newLength > mUnfinishedBytes.length) {
+            mUnfinishedBytes = Arrays.copyOf(mUnfinishedBytes,
+                    Math.max(newLength, mUnfinishedBytes.length * 2));
+        }
+        System.arraycopy(data, offset, mUnfinishedBytes, mUnfinishedLength, length);
+        mUnfinishedLength = newLength;
+    }
+
     /**
      * Terminates the process. This is called after the last lines have been through
      * {@link #processNewLines(String[])}.
@@ -122,4 +195,83 @@ public abstract class MultiLineReceiver implements IShellOutputReceiver {
      * @param lines The array containing the new lines.
      */
     public abstract void processNewLines(String[] lines);
+
+    /**
+     * Called in byte mode when new lines are being received by the remote process.
+     * <p/>The batch and the bytes it points to are reused, they are only valid during this call.
+     * The default implementation decodes the lines and passes them to
+     * {@link #processNewLines(String[])}.
+     * @param lines The batch containing the new lines.
+     */
+    public void processNewLines(LineBatch lines) {
+        String[] array = new String[lines.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = lines.getLine(i);
+        }
+        processNewLines(array);
+    }
+
+    /**
+     * Reusable container of lines given as ranges of UTF-8 bytes, without line terminators.
+     */
+    public static final class LineBatch {
+        private byte[][] mData = new byte[64][];
+        private int[] mOffsets = new int[64];
+        private int[] mLengths = new int[64];
+        private int mSize;
+
+        public int size() {
+            return mSize;
+        }
+
+        public byte[] getData(int index) {
+            return mData[index];
+        }
+
+        public int getOffset(int index) {
+            return mOffsets[index];
+        }
+
+        public int getLength(int index) {
+            return mLengths[index];
+        }
+
+        /**
+         * Decodes the line at the given index.
+         */
+        public String getLine(int index) {
+            return new String(mData[index], mOffsets[index], mLengths[index], UTF_8);
+        }
+
+        public void clear() {
+            Arrays.fill(mData, 0, mSize, null);
+            mSize = 0;
+        }
+
+        void add(byte[] data, int offset, int length, boolean trim) {
+            int end = offset + length;
+            if (trim) {
+                while (offset < end && (data[offset] & 0xff) <= ' ') {
+                    offset++;
+                }
+                while (end > offset && (data[end - 1] & 0xff) <= ' ') {
+                    end--;
+                }
+            } else {
+                while (end > offset && data[end - 1] == '\r') {
+                    end--;
+                }
+            }
+            if (mSize == mData.length) {
+                int capacity = mSize * 2;
+                mData = Arrays.copyOf(mData, capacity);
+                mOffsets = Arrays.copyOf(mOffsets, capacity);
+                mLengths = Arrays.copyOf(mLengths, capacity);
+            }
+            mData[mSize] = data;
+            mOffsets[mSize] = offset;
+            mLengths[mSize] = end - offset;
+            mSize++;
+        }
+    }
 }
@@ -17,51 +17,127 @@
 package com.android.ddmlib.log;
 
 import java.io.IOException;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.AdbHelper;
+import com.android.ddmlib.AndroidDebugBridge;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.Log;
 import com.android.ddmlib.MultiLineReceiver;
-import com.android.ddmlib.ShellCommandUnresponsiveException;
 import com.android.ddmlib.TimeoutException;
+import com.android.ddmlib.log.LogReceiver.LogEntry;
 
-public class LogCatReceiverTask implements Runnable {
-    private static final int DEVICE_POLL_INTERVAL_MSEC = 2000;
+public class LogCatReceiverTask {
+    /**
+     * Connects the commands of all the devices. Their output is then read by the one thread of
+     * the {@link AdbHelper#startRemoteCommand adb selector}, so no thread is kept per device.
+     */
+    private static final ExecutorService sStarter = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "logcat-start");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
 
     private final IDevice mDevice;
+    private final Logger mLogger;
     private final LogCatOutputReceiver mReceiver;
     private final AtomicBoolean mCancelled;
     private final String mCommand;
+    private final String mBinaryCommand;
+    private final LogCatBinaryReceiver mBinaryReceiver;
 
     public LogCatReceiverTask(@NonNull IDevice device, @NonNull String cmd, @NonNull Logger logger) {
+        this(device, cmd, null, logger);
+    }
+
+    /**
+     * @param cmd the logcat command producing text lines.
+     * @param binaryCmd the logcat command producing binary entries (logcat -B), tried first
+     *            when not null. The text command is used if the device rejects it.
+     */
+    public LogCatReceiverTask(@NonNull IDevice device, @NonNull String cmd,
+            @Nullable String binaryCmd, @NonNull Logger logger) {
         mDevice = device;
+        mLogger = logger;
         mCancelled = new AtomicBoolean();
         mReceiver = new LogCatOutputReceiver(logger, mCancelled);
         mCommand = cmd;
+        mBinaryCommand = binaryCmd;
+        mBinaryReceiver = binaryCmd != null ? new LogCatBinaryReceiver(logger, mCancelled) : null;
     }
 
-    @Override
-    public void run() {
-        // wait while device comes online
-        while (!mDevice.isOnline()) {
-            try {
-                Thread.sleep(DEVICE_POLL_INTERVAL_MSEC);
-            } catch (InterruptedException e) {
-                return;
+    /**
+     * Starts the command without blocking, the device should be online. The logger is then
+     * called on the adb selector thread, until the command ends or {@link #stop()}.
+     */
+    public void start() {
+        startLater(mBinaryCommand != null);
+    }
+
+    private void startLater(final boolean binary) {
+        sStarter.execute(new Runnable() {
+            @Override
+            public void run() {
+                startCommand(binary);
             }
+        });
+    }
+
+    private void startCommand(final boolean binary) {
+        if (mCancelled.get()) {
+            return;
         }
+        AdbHelper.CommandListener listener = new AdbHelper.CommandListener() {
+            @Override
+            public boolean isReady() {
+                return mLogger.isReady();
+            }
 
+            @Override
+            public void onEnd(IOException error) {
+                if (binary && mBinaryReceiver.isRejected()) {
+                    Log.w("LogCatReceiverTask", "Binary logcat not supported: "
+                            + mBinaryReceiver.getRejectedOutput());
+                    startLater(false);
+                    return;
+                }
+                if (error != null) {
+                    mReceiver.onStop("LogCat Connection error");
+                }
+                mReceiver.onStop("Device disconnected: 1");
+            }
+        };
         try {
-            mDevice.executeShellCommand(mCommand, mReceiver, 0, TimeUnit.SECONDS);
+            if (binary) {
+                AdbHelper.startRemoteCommand(AndroidDebugBridge.getSocketAddress(), "exec:",
+                        mBinaryCommand, mDevice.getSerialNumber(), mBinaryReceiver, listener);
+            } else {
+                AdbHelper.startRemoteCommand(AndroidDebugBridge.getSocketAddress(), "shell:",
+                        mCommand, mDevice.getSerialNumber(), mReceiver, listener);
+            }
+            return;
+        } catch (AdbCommandRejectedException e) {
+            if (binary) {
+                Log.w("LogCatReceiverTask", "Binary logcat rejected: " + e.getMessage());
+                startCommand(false);
+                return;
+            }
+            // will not be thrown as long as the shell supports logcat
         } catch (TimeoutException e) {
             mReceiver.onStop("LogCat Connection timed out");
-        } catch (AdbCommandRejectedException ignored) {
-            // will not be thrown as long as the shell supports logcat
-        } catch (ShellCommandUnresponsiveException ignored) {
-            // this will not be thrown since the last argument is 0
         } catch (IOException e) {
             mReceiver.onStop("LogCat Connection error");
         }
@@ -73,7 +149,23 @@ public class LogCatReceiverTask implements Runnable {
     }
     
     public static interface Logger {
-        public void onLog(String[] logs);
+        /**
+         * Whether more output can be taken now. Called on the adb selector thread, which reads
+         * all the devices, so the logger must not block it: while false the device is not read.
+         */
+        public boolean isReady();
+
+        /**
+         * Receives the lines of one packet. The batch is reused, so the lines must be consumed
+         * before returning.
+         */
+        public void onLog(MultiLineReceiver.LineBatch logs);
+
+        /**
+         * Receives the binary entries of one packet. The list is reused, so the entries must be
+         * consumed before returning.
+         */
+        public void onLogEntries(List<LogEntry> entries);
         public void onStop(String reason);
     }
 
@@ -85,6 +177,7 @@ public class LogCatReceiverTask implements Runnable {
             mLogger = logger;
             mCancelled = cancel;
             setTrimLine(false);
+            setByteMode(true);
         }
 
         /** Implements {@link IShellOutputReceiver#isCancelled() }. */
@@ -94,15 +187,109 @@ public class LogCatReceiverTask implements Runnable {
         }
 
         @Override
-        public void processNewLines(String[] lines) {
+        public void processNewLines(LineBatch lines) {
             if (isCancelled()) {
                 return;
             }
             mLogger.onLog(lines);
         }
 
+        @Override
+        public void processNewLines(String[] lines) {
+            // not used, lines always arrive as a LineBatch in byte mode
+        }
+
         public void onStop(String reason) {
             mLogger.onStop(reason);
         }
     }
+
+    /**
+     * Receives the output of logcat -B, framed into {@link LogEntry} objects by a
+     * {@link LogReceiver}.
+     * <p/>If the output does not start with a sane entry header, the device does not support
+     * the binary format (the output is an error message), and the receiver cancels itself.
+     */
+    public static class LogCatBinaryReceiver implements IShellOutputReceiver,
+            LogReceiver.ILogListener {
+        /** LOGGER_ENTRY_MAX_PAYLOAD is 4076 or less, depending on the version. */
+        private static final int MAX_PAYLOAD = 5 * 1024;
+
+        private final AtomicBoolean mCancelled;
+        private final Logger mLogger;
+        private final LogReceiver mLogReceiver = new LogReceiver(this);
+        private final ArrayList<LogEntry> mEntries = new ArrayList<>(128);
+        private final byte[] mProbe = new byte[4];
+        private int mProbeLength;
+        private boolean mChecked;
+        private boolean mRejected;
+
+        public LogCatBinaryReceiver(Logger logger, AtomicBoolean cancel) {
+            mLogger = logger;
+            mCancelled = cancel;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mRejected || mCancelled.get();
+        }
+
+        /**
+         * Returns whether the output turned out not to be binary entries.
+         */
+        public boolean isRejected() {
+            return mRejected;
+        }
+
+        String getRejectedOutput() {
+            return new String(mProbe, 0, mProbeLength);
+        }
+
+        @Override
+        public void addOutput(byte[] data, int offset, int length) {
+            if (isCancelled()) {
+                return;
+            }
+            if (!mChecked) {
+                int size = Math.min(mProbe.length - mProbeLength, length);
+                System.arraycopy(data, offset, mProbe, mProbeLength, size);
+                mProbeLength += size;
+                if (mProbeLength < mProbe.length) {
+                    return;
+                }
+                int len = (mProbe[0] & 0xff) | ((mProbe[1] & 0xff) << 8);
+                int hdrSize = (mProbe[2] & 0xff) | ((mProbe[3] & 0xff) << 8);
+                if (len == 0 || len > MAX_PAYLOAD || (hdrSize != 0 && hdrSize < 20)
+                        || hdrSize > 64) {
+                    mRejected = true;
+                    return;
+                }
+                mChecked = true;
+                // the probed bytes have not been parsed yet
+                mLogReceiver.parseNewData(mProbe, 0, mProbeLength - size);
+            }
+            mLogReceiver.parseNewData(data, offset, length);
+            if (!mEntries.isEmpty()) {
+                mLogger.onLogEntries(mEntries);
+                mEntries.clear();
+            }
+        }
+
+        @Override
+        public void flush() {
+            if (!mChecked && mProbeLength > 0) {
+                // ended before a whole header, e.g. a short error message
+                mRejected = true;
+            }
+        }
+
+        @Override
+        public void newEntry(LogEntry entry) {
+            mEntries.add(entry);
+        }
+
+        @Override
+        public void newData(byte[] data, int offset, int length) {
+        }
+    }
 }
@@ -27,6 +27,10 @@ import java.security.InvalidParameterException;
 public final class LogReceiver {
 
     private static final int ENTRY_HEADER_SIZE = 20; // 2*2 + 4*4; see LogEntry.
+    /** Largest header accepted, newer loggers append fields (euid, lid, uid) to the v1 header. */
+    private static final int MAX_ENTRY_HEADER_SIZE = 64;
+    /** LOG_ID_MAX, the number of log buffers. */
+    private static final int MAX_LOG_ID = 8;
 
     /**
      * Represents a log entry and its raw data.
@@ -36,7 +40,9 @@ public final class LogReceiver {
          * See //device/include/utils/logger.h
          */
         /** 16bit unsigned: length of the payload. */
-        public int  len; /* This is normally followed by a 16 bit padding */
+        public int  len;
+        /** Size of the header; 20 for the v1 header, which has a 16 bit padding instead. */
+        public int  hdrSize;
         /** pid of the process that generated this {@link LogEntry} */
         public int   pid;
         /** tid of the process that generated this {@link LogEntry} */
@@ -45,6 +51,11 @@ public final class LogReceiver {
         public int   sec;
         /** nanoseconds. */
         public int   nsec;
+        /**
+         * The log buffer of the entry (0 main, 1 radio, 2 events, 3 system, 4 crash...), from
+         * the lid field of the v3 and later headers. -1 if the header does not have it.
+         */
+        public int   lid = -1;
         /** The entry's raw data. */
         public byte[] data;
     }
@@ -80,7 +91,7 @@ public final class LogReceiver {
     private LogEntry mCurrentEntry;
 
     /** Temp buffer to store partial entry headers. */
-    private final byte[] mEntryHeaderBuffer = new byte[ENTRY_HEADER_SIZE];
+    private final byte[] mEntryHeaderBuffer = new byte[MAX_ENTRY_HEADER_SIZE];
     /** Offset in the partial header buffer */
     private int mEntryHeaderOffset = 0;
     /** Offset in the partial entry data */
@@ -119,43 +130,39 @@ public final class LogReceiver {
         while (length > 0 && !mIsCancelled) {
             // first check if we have no current entry.
             if (mCurrentEntry == null) {
-                if (mEntryHeaderOffset + length < ENTRY_HEADER_SIZE) {
-                    // if we don't have enough data to finish the header, save
-                    // the data we have and return
-                    System.arraycopy(data, offset, mEntryHeaderBuffer, mEntryHeaderOffset, length);
-                    mEntryHeaderOffset += length;
-                    return;
+                // the first 4 bytes tell the size of the whole header
+                if (mEntryHeaderOffset == 0 && length >= 4
+                        && length >= getHeaderSize(data, offset)) {
+                    // create the entry directly from the data array
+                    mCurrentEntry = createEntry(data, offset);
+
+                    // adjust current offset and remaining length to the beginning
+                    // of the entry data
+                    offset += mCurrentEntry.hdrSize;
+                    length -= mCurrentEntry.hdrSize;
                 } else {
-                    // we have enough to fill the header, let's do it.
-                    // did we store some part at the beginning of the header?
-                    if (mEntryHeaderOffset != 0) {
-                        // copy the rest of the entry header into the header buffer
-                        int size = ENTRY_HEADER_SIZE - mEntryHeaderOffset; 
-                        System.arraycopy(data, offset, mEntryHeaderBuffer, mEntryHeaderOffset,
-                                size);
-                        
-                        // create the entry from the header buffer
-                        mCurrentEntry = createEntry(mEntryHeaderBuffer, 0);
-    
-                        // since we used the whole entry header buffer, we reset  the offset
-                        mEntryHeaderOffset = 0;
-                        
-                        // adjust current offset and remaining length to the beginning
-                        // of the entry data
-                        offset += size;
-                        length -= size;
-                    } else {
-                        // create the entry directly from the data array
-                        mCurrentEntry = createEntry(data, offset);
-                        
-                        // adjust current offset and remaining length to the beginning
-                        // of the entry data
-                        offset += ENTRY_HEADER_SIZE;
-                        length -= ENTRY_HEADER_SIZE;
+                    // save the part of the header we have, until it is complete
+                    int headerSize = mEntryHeaderOffset < 4 ? 4
+                            : getHeaderSize(mEntryHeaderBuffer, 0);
+                    int size = Math.min(headerSize - mEntryHeaderOffset, length);
+                    System.arraycopy(data, offset, mEntryHeaderBuffer, mEntryHeaderOffset, size);
+                    mEntryHeaderOffset += size;
+                    offset += size;
+                    length -= size;
+
+                    if (mEntryHeaderOffset < 4
+                            || mEntryHeaderOffset < getHeaderSize(mEntryHeaderBuffer, 0)) {
+                        continue;
                     }
+
+                    // create the entry from the header buffer
+                    mCurrentEntry = createEntry(mEntryHeaderBuffer, 0);
+
+                    // since we used the whole entry header buffer, we reset  the offset
+                    mEntryHeaderOffset = 0;
                 }
             }
-            
+
             // at this point, we have an entry, and offset/length have been updated to skip
             // the entry header.
     
@@ -208,9 +215,21 @@ public final class LogReceiver {
         mIsCancelled = true;
     }
     
+    /**
+     * Returns the size of the entry header starting at <var>offset</var>, which must have at least
+     * 4 bytes available. The v1 header has a 16 bit padding where later versions store the size.
+     */
+    public static int getHeaderSize(byte[] data, int offset) {
+        int size = ArrayHelper.swapU16bitFromArray(data, offset + 2);
+        if (size < ENTRY_HEADER_SIZE || size > MAX_ENTRY_HEADER_SIZE) {
+            return ENTRY_HEADER_SIZE;
+        }
+        return size;
+    }
+
     /**
      * Creates a {@link LogEntry} from the array of bytes. This expects the data buffer size
-     * to be at least <code>offset + {@link #ENTRY_HEADER_SIZE}</code>.
+     * to be at least <code>offset + {@link #getHeaderSize(byte[], int)}</code>.
      * @param data the data buffer the entry is read from.
      * @param offset the offset of the first byte from the buffer representing the entry.
      * @return a new {@link LogEntry} or <code>null</code> if some error happened.
@@ -224,9 +243,10 @@ public final class LogReceiver {
         // create the new entry and fill it.
         LogEntry entry = new LogEntry();
         entry.len = ArrayHelper.swapU16bitFromArray(data, offset);
-        
-        // we've read only 16 bits, but since there's also a 16 bit padding,
-        // we can skip right over both.
+        entry.hdrSize = getHeaderSize(data, offset);
+
+        // the 16 bit padding or header size was read above, the fields added after nsec by
+        // newer headers are skipped by the caller.
         offset += 4;
         
         entry.pid = ArrayHelper.swap32bitFromArray(data, offset);
@@ -237,6 +257,13 @@ public final class LogReceiver {
         offset += 4;
         entry.nsec = ArrayHelper.swap32bitFromArray(data, offset);
         offset += 4;
+        if (entry.hdrSize >= ENTRY_HEADER_SIZE + 4) {
+            // the v2 header of older devices has the euid there, only log ids are taken
+            int lid = ArrayHelper.swap32bitFromArray(data, offset);
+            if (lid >= 0 && lid < MAX_LOG_ID) {
+                entry.lid = lid;
+            }
+        }
         
         // allocate the data
         entry.data = new byte[entry.len];
@@ -28,28 +28,101 @@
 
 package org.rh.tools.logcat;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.JOptionPane;
 
 import org.rh.util.LLog;
 
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.AdbHelper;
+import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.MultiLineReceiver;
+import com.android.ddmlib.ShellCommandUnresponsiveException;
+import com.android.ddmlib.TimeoutException;
+
+/**
+ * Reads the log by talking to the adb server directly (host:devices, host:transport:serial,
+ * shell:), the output of the device is split into lines as it comes from the socket. The only
+ * process ever started is "adb start-server" when the server is not running yet.
+ */
 public class ByAdbCommand implements LogcatPlus.LogProvider {
 
     final LogcatPlus mL;
     String mTargetDevice;
-    Process mAdbProcess;
+    volatile LogReceiver mLogReceiver;
     Timer mProcTimer;
 
     public ByAdbCommand(LogcatPlus logger) {
         mL = logger;
     }
 
+    /**
+     * Passes the lines of logcat to the log of the device, until it is cancelled.
+     */
+    private static class LogReceiver extends MultiLineReceiver {
+        final DeviceLog mLog;
+        final LogLine.DeviceClock mClock;
+        final ArrayList<LogLine.DeviceForUI> mParsed = new ArrayList<>(128);
+        volatile boolean mCancelled;
+
+        LogReceiver(DeviceLog log) {
+            mLog = log;
+            mClock = new LogLine.DeviceClock(log.mTimeZone);
+            setByteMode(true);
+        }
+
+        @Override
+        public void processNewLines(MultiLineReceiver.LineBatch lines) {
+            for (int i = 0, s = lines.size(); i < s; i++) {
+                if (lines.getLength(i) > 0) {
+                    mParsed.add(new LogLine.DeviceForUI(lines.getLine(i), mClock));
+                }
+            }
+            mLog.onLog(mParsed);
+            mParsed.clear();
+        }
+
+        @Override
+        public void processNewLines(String[] lines) {
+            // Byte mode only.
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    /**
+     * Collects the non-empty lines of a short shell command.
+     */
+    private static class LinesReceiver extends MultiLineReceiver {
+        final ArrayList<String> mLines = new ArrayList<>(512);
+
+        @Override
+        public void processNewLines(String[] lines) {
+            for (String line : lines) {
+                if (line.length() > 0) {
+                    mLines.add(line);
+                }
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+
     @Override
     public void start() {
         if (mProcTimer != null) {
@@ -75,44 +148,34 @@ public class ByAdbCommand implements LogcatPlus.LogProvider {
         }).start();
     }
 
-    private void runLogcat() throws IOException, InterruptedException {
-        String cmd = mL.getCommand();
-        String fullCmd = "adb"
-                + (mTargetDevice != null ? (" -s " + mTargetDevice + " " + cmd) : cmd);
-        LLog.i("start cmd: " + fullCmd);
-        mAdbProcess = Runtime.getRuntime().exec(fullCmd);
-
-        try (BufferedReader r = new BufferedReader(new InputStreamReader(
-                mAdbProcess.getInputStream(), "utf-8"))) {
-            String line;
-            while ((line = r.readLine()) != null) {
-                if (line.isEmpty()) {
-                    continue;
-                }
-                mL.onLog(line);
-            }
-        } finally {
-            if (mAdbProcess != null) {
-                mAdbProcess.destroy();
-            }
-        }
-
+    private void runLogcat() throws TimeoutException, AdbCommandRejectedException,
+            ShellCommandUnresponsiveException, IOException {
+        DeviceLog log = mL.getDeviceLog(mTargetDevice);
+        log.mTimeZone = getTimeZone();
+        String cmd = mL.getCommand() + mL.beginCapture(log);
+        LLog.i("start cmd: " + cmd + " on " + mTargetDevice);
+        LogReceiver receiver = new LogReceiver(log);
+        mLogReceiver = receiver;
+        AdbHelper.executeRemoteCommand(getSocketAddress(), "shell:", cmd, mTargetDevice,
+                receiver, 0, TimeUnit.MILLISECONDS);
         LLog.i("Logger stopped:" + cmd);
     }
 
     @Override
     public void stop() {
-        if (mAdbProcess != null) {
-            mAdbProcess.destroy();
-            mAdbProcess = null;
+        LogReceiver receiver = mLogReceiver;
+        if (receiver != null) {
+            receiver.mCancelled = true;
+            mLogReceiver = null;
         }
     }
 
-    void viewProcess() throws IOException, InterruptedException {
+    void viewProcess() {
         stop();
         mL.setInputEnable(false);
-        mL.mPane.setAutoScroll(false);
-        mL.mPane.setFont(null);
+        DeviceLog log = mL.getSelectedLog();
+        log.mPane.setAutoScroll(false);
+        log.mPane.setFont(null);
         mTargetDevice = selectDevice();
         if (mTargetDevice == null) {
             mL.setText("No device");
@@ -168,55 +231,54 @@ public class ByAdbCommand implements LogcatPlus.LogProvider {
         }, 20, 120 * 1000);
     }
 
-    private ArrayList<String> adbCheckDevices() {
-        ArrayList<String> devices = new ArrayList<>();
+    private static InetSocketAddress getSocketAddress() {
+        AndroidDebugBridge.initIfNeeded();
+        return AndroidDebugBridge.getSocketAddress();
+    }
+
+    private List<String> adbCheckDevices() {
         try {
-            Process adbP = Runtime.getRuntime().exec("adb devices");
-            try (BufferedReader r = new BufferedReader(new InputStreamReader(adbP.getInputStream(),
-                    "utf-8"))) {
-                int l = 0;
-                String line;
-                while ((line = r.readLine()) != null) {
-                    if (l == 0 && !line.startsWith("List of devices")) {
-                        mL.setText("Cannot execute adb");
-                        break;
-                    } else if (l > 0 && line.endsWith("device")) {
-                        String[] segs = line.split("[ \t]+");
-                        devices.add(segs[0]);
-                    }
-                    l++;
-                }
+            try {
+                return AdbHelper.getOnlineDevices(getSocketAddress());
+            } catch (ConnectException e) {
+                // No server yet, this is the only time a process is needed.
+                LLog.i("adb server is not running, start it");
+                Runtime.getRuntime().exec("adb start-server").waitFor();
+                return AdbHelper.getOnlineDevices(getSocketAddress());
             }
-            adbP.destroy();
-        } catch (IOException e) {
+        } catch (IOException | TimeoutException | AdbCommandRejectedException e) {
+            mL.setText("Cannot connect to adb");
             LLog.ex(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        return devices;
+        return new ArrayList<>();
     }
 
     private ArrayList<String> adbShell(String cmd) {
-        ArrayList<String> lines = new ArrayList<>(512);
+        LinesReceiver receiver = new LinesReceiver();
         try {
-            Process adbP = Runtime.getRuntime().exec("adb -s " + mTargetDevice + " shell " + cmd);
-            try (BufferedReader r = new BufferedReader(new InputStreamReader(adbP.getInputStream(),
-                    "utf-8"))) {
-                String line;
-                while ((line = r.readLine()) != null) {
-                    if (line.length() > 0) {
-                        lines.add(line);
-                    }
-                }
-            }
-            adbP.destroy();
-        } catch (IOException e) {
+            AdbHelper.executeRemoteCommand(getSocketAddress(), "shell:", cmd, mTargetDevice,
+                    receiver, 20, TimeUnit.SECONDS);
+        } catch (IOException | TimeoutException | AdbCommandRejectedException
+                | ShellCommandUnresponsiveException e) {
             LLog.ex(e);
         }
-        return lines;
+        return receiver.mLines;
+    }
+
+    /**
+     * The time zone the device prints its log in, the zone of the host if it does not tell.
+     */
+    private TimeZone getTimeZone() {
+        ArrayList<String> lines = adbShell("getprop persist.sys.timezone");
+        String id = lines.isEmpty() ? "" : lines.get(0).trim();
+        return id.length() > 0 ? TimeZone.getTimeZone(id) : TimeZone.getDefault();
     }
 
     private String selectDevice() {
         String dev = null;
-        ArrayList<String> devices = adbCheckDevices();
+        List<String> devices = adbCheckDevices();
         if (devices.size() == 1) {
             dev = devices.get(0);
         } else if (devices.size() > 1) {
@@ -28,7 +28,15 @@
 
 package org.rh.tools.logcat;
 
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.rh.tools.logcat.LogcatPlus.LogSource;
@@ -36,64 +44,146 @@ import org.rh.util.LLog;
 
 import com.android.ddmlib.AndroidDebugBridge;
 import com.android.ddmlib.IDevice;
+import com.android.ddmlib.MultiLineReceiver;
 import com.android.ddmlib.log.EventLogParser;
 import com.android.ddmlib.log.LogCatReceiverTask;
 import com.android.ddmlib.log.LogReceiver;
 import com.android.ddmlib.log.LogReceiver.LogEntry;
 
-public class ByDdmlib implements LogcatPlus.LogProvider, LogReceiver.ILogListener {
+public class ByDdmlib implements LogcatPlus.LogProvider {
 
     final LogcatPlus mL;
-    LogCatReceiverTask.Logger mLogTask;
-    LogCatReceiverTask mRunningTask;
-    EventLogParser mEventLogParser;
-    int mSelectedDevice;
-    ArrayList<IDevice> mDevices = new ArrayList<>();
+    final ArrayList<IDevice> mDevices = new ArrayList<>();
+    final HashMap<IDevice, DeviceReader> mReaders = new HashMap<>();
     AtomicBoolean mStarted = new AtomicBoolean();
-    
+
+    // How long to wait for a property the device has not been asked for yet.
+    private static final long PROPERTY_TIMEOUT_SEC = 5;
+
     public ByDdmlib(LogcatPlus logger) {
         mL = logger;
-        mLogTask = new LogCatReceiverTask.Logger() {
-            @Override
-            public void onLog(String[] logs) {
-                mL.onLog(logs);
+    }
+
+    /**
+     * Reads the log of one device into its own {@link DeviceLog}. Each device has its own
+     * task, the lines of different devices are never mixed. The tasks of all the devices are
+     * read by the one adb selector thread.
+     */
+    class DeviceReader implements LogCatReceiverTask.Logger, LogReceiver.ILogListener {
+        final DeviceLog mLog;
+        final EntryDecoder mEntryDecoder;
+        final LogLine.DeviceClock mClock;
+        // The event tags differ between devices
+        final EventLogParser mEventLogParser;
+        final ArrayList<LogLine.DeviceForUI> mDecoded = new ArrayList<>(128);
+        LogCatReceiverTask mTask;
+
+        DeviceReader(IDevice device) {
+            mLog = mL.getDeviceLog(device.getSerialNumber());
+            TimeZone zone = getTimeZone(device);
+            mLog.mTimeZone = zone;
+            mEntryDecoder = new EntryDecoder(zone);
+            mClock = new LogLine.DeviceClock(zone);
+            if (mL.getLogSource() == LogSource.events) {
+                mEventLogParser = new EventLogParser();
+                mEventLogParser.init(device);
+            } else {
+                mEventLogParser = null;
             }
+            String resume = mL.beginCapture(mLog);
+            String binaryCmd = mL.getBinaryCommand();
+            mTask = new LogCatReceiverTask(device, mL.getCommand() + resume,
+                    binaryCmd != null ? binaryCmd + resume : null, this);
+        }
 
-            @Override
-            public void onStop(String reason) {
-                LLog.i(reason);
+        @Override
+        public boolean isReady() {
+            return mLog.isReady();
+        }
+
+        @Override
+        public void onLog(MultiLineReceiver.LineBatch logs) {
+            for (int i = 0, s = logs.size(); i < s; i++) {
+                mDecoded.add(new LogLine.DeviceForUI(logs.getLine(i), mClock));
+            }
+            mLog.onLog(mDecoded);
+            mDecoded.clear();
+        }
+
+        @Override
+        public void onLogEntries(List<LogEntry> entries) {
+            for (int i = 0, s = entries.size(); i < s; i++) {
+                mEntryDecoder.decode(entries.get(i), mDecoded);
             }
-        };
+            mLog.onLog(mDecoded);
+            mDecoded.clear();
+        }
+
+        @Override
+        public void onStop(String reason) {
+            LLog.i(mLog.getName() + ": " + reason);
+        }
+
+        @Override
+        public void newEntry(LogEntry entry) {
+            mEventLogParser.parse(entry);
+        }
+
+        @Override
+        public void newData(byte[] data, int offset, int length) {
+            System.out.println("wtf " + new String(data, offset, length));
+        }
+    }
+
+    /**
+     * The time zone the device prints its text log in, binary entries are printed in it too so
+     * both read the same. The zone of the host if the device does not tell.
+     */
+    static TimeZone getTimeZone(IDevice device) {
+        String id = null;
+        try {
+            id = device.getSystemProperty("persist.sys.timezone").get(
+                    PROPERTY_TIMEOUT_SEC, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            LLog.e("Cannot get the time zone of " + device + ", " + e);
+        }
+        return id != null && id.trim().length() > 0 ? TimeZone.getTimeZone(id.trim())
+                : TimeZone.getDefault();
     }
 
     public void start() {
         if (mStarted.compareAndSet(false, true)) {
-            startLogThread();
+            synchronized (mDevices) {
+                for (IDevice device : mDevices) {
+                    startReader(device);
+                }
+            }
         }
     }
 
     public void stop() {
         mStarted.set(false);
-        if (mRunningTask != null) {
-            mRunningTask.stop();
-            mRunningTask = null;
+        synchronized (mDevices) {
+            for (DeviceReader reader : mReaders.values()) {
+                reader.mTask.stop();
+            }
+            mReaders.clear();
         }
     }
 
-    private void startLogThread() {
-        if (mDevices.isEmpty()) {
+    /**
+     * Starts reading the device once it is online, {@link #init()} calls it again when the state
+     * of the device changes.
+     */
+    private void startReader(IDevice device) {
+        if (mReaders.containsKey(device) || !device.isOnline()) {
             return;
         }
-        if (mL.getLogSource() == LogSource.events) {
-            if (mEventLogParser == null) {
-                mEventLogParser = new EventLogParser();
-                IDevice device = mDevices.get(mSelectedDevice);
-                mEventLogParser.init(device);
-            }
-        }
-        mRunningTask = new LogCatReceiverTask(mDevices.get(mSelectedDevice),
-                mL.getCommand(), mLogTask);
-        new Thread(mRunningTask).start();
+        DeviceReader reader = new DeviceReader(device);
+        mReaders.put(device, reader);
+        reader.mTask.start();
     }
 
     @Override
@@ -104,20 +194,36 @@ public class ByDdmlib implements LogcatPlus.LogProvider, LogReceiver.ILogListene
             @Override
             public void deviceDisconnected(IDevice device) {
                 LLog.v(device + " has disconnected\n");
-                mDevices.remove(device);
+                synchronized (mDevices) {
+                    mDevices.remove(device);
+                    DeviceReader reader = mReaders.remove(device);
+                    if (reader != null) {
+                        reader.mTask.stop();
+                    }
+                }
             }
 
             @Override
             public void deviceConnected(IDevice device) {
                 LLog.v(device + " has connected\n");
-                mDevices.add(device);
-                if (mStarted.get()) {
-                    startLogThread();
+                synchronized (mDevices) {
+                    mDevices.add(device);
+                    if (mStarted.get()) {
+                        startReader(device);
+                    }
                 }
             }
 
             @Override
             public void deviceChanged(IDevice device, int changeMask) {
+                if ((changeMask & IDevice.CHANGE_STATE) == 0) {
+                    return;
+                }
+                synchronized (mDevices) {
+                    if (mStarted.get() && mDevices.contains(device)) {
+                        startReader(device);
+                    }
+                }
             }
         });
         AndroidDebugBridge.createBridge();
@@ -128,13 +234,107 @@ public class ByDdmlib implements LogcatPlus.LogProvider, LogReceiver.ILogListene
         AndroidDebugBridge.terminate();
     }
 
-    @Override
-    public void newEntry(LogEntry entry) {
-        mEventLogParser.parse(entry);
-    }
+    /**
+     * Decodes the payload of binary entries (priority, tag\0, message\0) into lines with the
+     * level and tag already set. The text is laid out as "logcat -v threadtime" would print it,
+     * one line per line of the message.
+     */
+    static class EntryDecoder {
+        final static Charset UTF_8 = Charset.forName("UTF-8");
+        private final StringBuilder mSb = new StringBuilder(256);
+        private final Calendar mCal;
+        private int mLastSec = -1;
+        private String mLastSecStr;
 
-    @Override
-    public void newData(byte[] data, int offset, int length) {
-        System.out.println("wtf " + new String(data, offset, length));
+        EntryDecoder(TimeZone zone) {
+            mCal = Calendar.getInstance(zone);
+        }
+
+        void decode(LogEntry entry, List<LogLine.DeviceForUI> out) {
+            final byte[] data = entry.data;
+            final int len = entry.len;
+            if (len < 2) {
+                return;
+            }
+            LogLine.DeviceForUI.Level level = LogLine.DeviceForUI.getLevelByPriority(data[0]);
+            int tagEnd = 1;
+            while (tagEnd < len && data[tagEnd] != 0) {
+                tagEnd++;
+            }
+            String tag = new String(data, 1, tagEnd - 1, UTF_8);
+            final int tagId = LogLine.sTags.idOf(tag);
+            int msgEnd = len;
+            while (msgEnd > tagEnd + 1 && (data[msgEnd - 1] == 0 || data[msgEnd - 1] == '\n')) {
+                msgEnd--;
+            }
+
+            StringBuilder sb = mSb;
+            sb.setLength(0);
+            appendTime(sb, entry.sec, entry.nsec);
+            sb.append(' ');
+            appendPadded(sb, entry.pid);
+            sb.append(' ');
+            appendPadded(sb, entry.tid);
+            sb.append(' ').append(level.label).append(' ').append(tag);
+            for (int i = tag.length(); i < 8; i++) {
+                sb.append(' ');
+            }
+            sb.append(": ");
+            final int prefixLen = sb.length();
+            final long time = entry.sec * 1000L + entry.nsec / 1000000;
+
+            int start = tagEnd + 1;
+            do {
+                int end = start;
+                while (end < msgEnd && data[end] != '\n') {
+                    end++;
+                }
+                sb.setLength(prefixLen);
+                if (end > start) {
+                    sb.append(new String(data, start, end - start, UTF_8));
+                }
+                LogLine.DeviceForUI line = new LogLine.DeviceForUI(sb.toString(), time,
+                        entry.pid, entry.tid, level, tagId, prefixLen);
+                line.mLogId = (byte) entry.lid;
+                out.add(line);
+                start = end + 1;
+            } while (start < msgEnd);
+        }
+
+        // MM-dd HH:mm:ss.SSS in the time zone of the device
+        private void appendTime(StringBuilder sb, int sec, int nsec) {
+            if (sec != mLastSec || mLastSecStr == null) {
+                mCal.setTimeInMillis(sec * 1000L);
+                StringBuilder t = new StringBuilder(14);
+                append2(t, mCal.get(Calendar.MONTH) + 1);
+                t.append('-');
+                append2(t, mCal.get(Calendar.DAY_OF_MONTH));
+                t.append(' ');
+                append2(t, mCal.get(Calendar.HOUR_OF_DAY));
+                t.append(':');
+                append2(t, mCal.get(Calendar.MINUTE));
+                t.append(':');
+                append2(t, mCal.get(Calendar.SECOND));
+                mLastSecStr = t.toString();
+                mLastSec = sec;
+            }
+            int ms = nsec / 1000000;
+            sb.append(mLastSecStr).append('.');
+            sb.append((char) ('0' + ms / 100)).append((char) ('0' + ms / 10 % 10))
+                    .append((char) ('0' + ms % 10));
+        }
+
+        private static void append2(StringBuilder sb, int v) {
+            sb.append((char) ('0' + v / 10)).append((char) ('0' + v % 10));
+        }
+
+        // %5d
+        private static void appendPadded(StringBuilder sb, int v) {
+            int digits = v < 10 ? 1 : v < 100 ? 2 : v < 1000 ? 3 : v < 10000 ? 4 : 5;
+            for (int i = digits; i < 5; i++) {
+                sb.append(' ');
+            }
+            sb.append(v);
+        }
     }
 }
@@ -0,0 +1,1071 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2014 Riddle Hsu
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rh.tools.logcat;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.RecursiveTask;
+
+import javax.swing.JScrollPane;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.text.Element;
+
+import org.rh.util.LLog;
+import org.rh.util.StringUtil;
+
+/**
+ * Log of one device: its own store of lines, the pane showing them and the pending updates
+ * of that pane. The filter conditions and the refresh executor are shared by all the devices
+ * through {@link LogcatPlus}.
+ */
+class DeviceLog {
+    final LogcatPlus mL;
+    String mName;
+    final LogcatPlus.LoggerPane mPane;
+    final JScrollPane mView;
+
+    final LogStore mLogs = new LogStore();
+    // The pane shows at most this many lines whatever the store retains, the text component
+    // slows down long before the retention is reached. Trimmed by PANE_TRIM_LINES at once.
+    final static int PANE_MAX_LINES = 50000;
+    final static int PANE_TRIM_LINES = 5000;
+    // Used on the EDT. The pane offset of the first line of each store segment which has lines
+    // in the pane, as {segment, offset + mRemovedLength}, so the pane is trimmed at the same
+    // line as the store.
+    private final ArrayDeque<long[]> mSegmentStarts = new ArrayDeque<>();
+    private long mRemovedLength;
+    // Used by the refresh only, the oldest line the next refresh must reach
+    private long mReachIndex = Long.MAX_VALUE;
+    // Written under mBatchShown. The saved session shown by this log, it has no device then
+    volatile SessionArchive mArchive;
+    // Set when the last refresh stopped before the oldest spilled line, the older matches of
+    // the filter are not shown
+    volatile boolean mPartial;
+    // Guarded by mBatchShown
+    boolean mPaused;
+    long mPausedIndex;
+    // The zone the device prints its times in, set by the provider before the capture
+    volatile TimeZone mTimeZone = TimeZone.getDefault();
+
+    DeviceLog(LogcatPlus logger, String name) {
+        mL = logger;
+        mName = name;
+        mPane = new PaneColored();
+                //new PaneQuick();
+        if (mL.mDefaultFont != null) {
+            mPane.setFont(mL.mDefaultFont);
+        }
+        mView = new JScrollPane(mPane.asJTextComponent());
+        mView.setRowHeaderView(new RowHeader(mPane.asJTextComponent()));
+        if (mL.mAutoScrollCB != null) {
+            mPane.setAutoScroll(mL.mAutoScrollCB.isSelected());
+        }
+        mPublisher = new FramePublisher(mL.mFrameRate);
+        mPaused = mL.mIsPaused;
+    }
+
+    String getName() {
+        return mName == null ? "" : mName;
+    }
+
+    public void appendText(final String text) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    mPane.append(text);
+                }
+            });
+        } else {
+            mPane.append(text);
+        }
+    }
+
+    // Runs on the EDT
+    private void appendLines(List<LogLine> lines) {
+        final int base = mPane.getLength();
+        mPane.appendLines(lines);
+
+        StringUtil.IgnoreCaseMatcher hl = mL.mHighlightTF.getLength() > mL.mFilterLen
+                ? new StringUtil.IgnoreCaseMatcher(mL.mHighlightTF.getText()) : null;
+        int lineStart = base;
+        for (int i = 0, s = lines.size(); i < s; i++) {
+            LogLine line = lines.get(i);
+            if (line instanceof LogLine.DeviceForUI) {
+                long segment = ((LogLine.DeviceForUI) line).mIndex >> LogStore.SEGMENT_SHIFT;
+                long[] last = mSegmentStarts.peekLast();
+                if (last == null || last[0] < segment) {
+                    mSegmentStarts.add(new long[] { segment, lineStart + mRemovedLength });
+                }
+            }
+            String msg = line.mMsg;
+            if (hl != null) {
+                int pos = hl.indexOf(msg, 0);
+                if (pos > -1) {
+                    mPane.paintTextBackground(LogcatPlus.sBkgColors[0], lineStart + pos,
+                            lineStart + pos + hl.length());
+                }
+            }
+            lineStart += msg.length() + 1;
+        }
+    }
+
+    // Runs on the EDT. Selects the first line at or after the given index, the selection also
+    // keeps the pane from scrolling to the new lines.
+    private void selectLine(List<LogLine> lines, int base, long index) {
+        int lineStart = base;
+        for (int i = 0, s = lines.size(); i < s; i++) {
+            LogLine line = lines.get(i);
+            if (line instanceof LogLine.DeviceForUI
+                    && ((LogLine.DeviceForUI) line).mIndex >= index) {
+                mPane.asJTextComponent().select(lineStart, lineStart + line.mMsg.length());
+                return;
+            }
+            lineStart += line.mMsg.length() + 1;
+        }
+    }
+
+    // Runs on the EDT
+    private void resetPane(String text) {
+        mPane.setText(text);
+        mSegmentStarts.clear();
+        mRemovedLength = 0;
+    }
+
+    /**
+     * Runs on the EDT. Removes the lines of the segments before the given absolute index, which
+     * is where the store begins after a trim, from the head of the pane while the pane is over
+     * the retention. The lines paged in from the spill by a refresh stay while there is room.
+     * The pane never keeps more than PANE_MAX_LINES either way.
+     */
+    private void trimPane(long index) {
+        final long segment = index >> LogStore.SEGMENT_SHIFT;
+        final long budget = mL.getRetainBytes();
+        final int paneLength = mPane.getLength();
+        int length = 0;
+        long[] start;
+        while ((start = mSegmentStarts.peekFirst()) != null && start[0] < segment
+                && paneLength - length > budget) {
+            mSegmentStarts.pollFirst();
+            long[] next = mSegmentStarts.peekFirst();
+            length = next == null ? paneLength
+                    : (int) Math.min(next[1] - mRemovedLength, paneLength);
+        }
+        removePaneHead(length);
+        capPane();
+    }
+
+    // Runs on the EDT. Removes the oldest lines once the pane is over PANE_MAX_LINES.
+    private void capPane() {
+        final Element root = mPane.getDocument().getDefaultRootElement();
+        final int count = root.getElementCount();
+        if (count <= PANE_MAX_LINES) {
+            return;
+        }
+        int lines = Math.min(count - PANE_MAX_LINES + PANE_TRIM_LINES, count);
+        removePaneHead(Math.min(root.getElement(lines - 1).getEndOffset(), mPane.getLength()));
+    }
+
+    // Runs on the EDT
+    private void removePaneHead(int length) {
+        if (length <= 0) {
+            return;
+        }
+        try {
+            mPane.getDocument().remove(0, length);
+            mRemovedLength += length;
+        } catch (javax.swing.text.BadLocationException ex) {
+            LLog.e("removePaneHead BadLocation " + length);
+            return;
+        }
+        // Forget the segments which are gone from the pane
+        long[] first;
+        while ((first = mSegmentStarts.pollFirst()) != null) {
+            long[] next = mSegmentStarts.peekFirst();
+            if (next == null || next[1] > mRemovedLength) {
+                mSegmentStarts.addFirst(first);
+                break;
+            }
+        }
+    }
+
+    // The part of the frame which goes to the pane, its newest lines, or those from the line
+    // to select if it is older. Small enough that capPane() keeps all of it.
+    private static List<LogLine> paneWindow(List<LogLine> frame, long selectIndex) {
+        final int max = PANE_MAX_LINES - PANE_TRIM_LINES;
+        int from = Math.max(0, frame.size() - max);
+        if (selectIndex >= 0) {
+            for (int i = 0; i < from; i++) {
+                LogLine line = frame.get(i);
+                if (line instanceof LogLine.DeviceForUI
+                        && ((LogLine.DeviceForUI) line).mIndex >= selectIndex) {
+                    from = i;
+                    break;
+                }
+            }
+        }
+        return frame.subList(from, Math.min(frame.size(), from + max));
+    }
+
+    /**
+     * Moves the lines to show into the pane at a fixed rate. The lines which became visible
+     * since the last frame are appended with one document insertion. The timer coalesces its
+     * events and stops when there is nothing to do, so there is at most one pending event of
+     * each pane on the EDT however fast the device logs.
+     */
+    private class FramePublisher implements ActionListener {
+        // Lines waiting for the next frame before the reader is considered too fast
+        final static int MAX_PENDING = 2000;
+        private final Timer mTimer;
+        // Lines offered by the reader, the only ones the overload mode may drop or sample
+        private ArrayList<LogLine> mPending = new ArrayList<>(256);
+        // Lines published by a refresh or a resume, always shown whole
+        private ArrayList<LogLine> mRefresh = new ArrayList<>(256);
+        private ArrayList<LogLine> mFrame = new ArrayList<>(256);
+        private boolean mClear;
+        // Absolute index of the oldest line kept by the store, -1 if not trimmed since
+        private long mTrimIndex = -1;
+        // The line to select once the next frame is shown, -1 if none
+        private long mSelectIndex = -1;
+        private int mSampleCount;
+        long mDropped;
+        long mSampled;
+        long mDelayed;
+
+        FramePublisher(int frameRate) {
+            mTimer = new Timer(1000 / frameRate, this);
+            mTimer.setCoalesce(true);
+        }
+
+        void setFrameRate(int frameRate) {
+            mTimer.setDelay(1000 / frameRate);
+        }
+
+        /**
+         * Publishes the lines of a refresh or a resume. They are kept out of the lines of the
+         * reader, so the overload mode never cuts them however many there are.
+         */
+        synchronized void publish(List<? extends LogLine> lines) {
+            // The pending lines are older, keep them in front
+            mRefresh.addAll(mPending);
+            mPending.clear();
+            mRefresh.addAll(lines);
+            wakeLocked();
+        }
+
+        /**
+         * Whether {@link #awaitRoom(int)} would return right away, so a reader which must not
+         * block can wait for the pane before reading more.
+         */
+        synchronized boolean hasRoom() {
+            return mPending.size() < MAX_PENDING
+                    || mL.mOverloadMode != LogcatPlus.OverloadMode.BLOCK;
+        }
+
+        /**
+         * In {@link LogcatPlus.OverloadMode#BLOCK} mode, holds the reader until the pane has
+         * taken the pending lines. It must be called without holding the ingest lock, the EDT
+         * may need it.
+         */
+        synchronized void awaitRoom(int count) {
+            if (mPending.size() < MAX_PENDING
+                    || mL.mOverloadMode != LogcatPlus.OverloadMode.BLOCK) {
+                return;
+            }
+            mDelayed += count;
+            wakeLocked();
+            while (mPending.size() >= MAX_PENDING
+                    && mL.mOverloadMode == LogcatPlus.OverloadMode.BLOCK) {
+                try {
+                    wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Publishes the lines of the reader. When the pane falls behind, the overload mode
+         * decides whether the oldest pending lines are dropped or only one line in
+         * {@link LogcatPlus#OVERLOAD_SAMPLE_RATE} is shown. The store always gets all the lines.
+         */
+        synchronized void offer(List<? extends LogLine> lines) {
+            final int count = lines.size();
+            switch (mL.mOverloadMode) {
+                case BLOCK:
+                    mPending.addAll(lines);
+                    break;
+                case SAMPLE:
+                    if (mPending.size() + count > MAX_PENDING / 2) {
+                        for (int i = 0; i < count; i++) {
+                            if (mSampleCount++ % LogcatPlus.OVERLOAD_SAMPLE_RATE == 0) {
+                                mPending.add(lines.get(i));
+                            } else {
+                                mSampled++;
+                            }
+                        }
+                    } else {
+                        mPending.addAll(lines);
+                    }
+                    dropOldestLocked();
+                    break;
+                default:
+                    mPending.addAll(lines);
+                    dropOldestLocked();
+                    break;
+            }
+            wakeLocked();
+        }
+
+        private void dropOldestLocked() {
+            int over = mPending.size() - MAX_PENDING;
+            if (over > 0) {
+                mPending.subList(0, over).clear();
+                mDropped += over;
+            }
+        }
+
+        synchronized void resetCounters() {
+            mDropped = mSampled = mDelayed = 0;
+        }
+
+        /** The pane is emptied before the next lines are shown. */
+        synchronized void clear() {
+            mPending.clear();
+            mRefresh.clear();
+            mClear = true;
+            wakeLocked();
+            notifyAll();
+        }
+
+        /** Selects the first line at or after the given index in the next frame. */
+        synchronized void select(long index) {
+            mSelectIndex = index;
+            wakeLocked();
+        }
+
+        /** Removes the lines before the given absolute index from the pane. */
+        synchronized void trim(long index) {
+            mTrimIndex = Math.max(mTrimIndex, index);
+            wakeLocked();
+        }
+
+        private void wakeLocked() {
+            if (!mTimer.isRunning()) {
+                mTimer.start();
+            }
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            final boolean clear;
+            final long trimIndex;
+            final long selectIndex;
+            synchronized (this) {
+                if (mPending.isEmpty() && mRefresh.isEmpty() && !mClear && mTrimIndex < 0) {
+                    mTimer.stop();
+                    return;
+                }
+                ArrayList<LogLine> frame = mPending;
+                if (!mRefresh.isEmpty()) {
+                    mRefresh.addAll(mPending);
+                    mPending.clear();
+                    frame = mRefresh;
+                    mRefresh = mFrame;
+                } else {
+                    mPending = mFrame;
+                }
+                mFrame = frame;
+                clear = mClear;
+                trimIndex = mTrimIndex;
+                selectIndex = mSelectIndex;
+                mClear = false;
+                mTrimIndex = -1;
+                mSelectIndex = -1;
+                // Let a blocked reader go on
+                notifyAll();
+            }
+
+            if (clear) {
+                resetPane("");
+            }
+            if (trimIndex >= 0) {
+                trimPane(trimIndex);
+            }
+            if (!mFrame.isEmpty()) {
+                final List<LogLine> shown = paneWindow(mFrame, selectIndex);
+                final int base = mPane.getLength();
+                appendLines(shown);
+                if (selectIndex >= 0) {
+                    selectLine(shown, base, selectIndex);
+                }
+                mFrame.clear();
+                capPane();
+            }
+        }
+    }
+
+    private final FramePublisher mPublisher;
+    // Lines of the current batch which pass the filter, only used by the reader thread
+    private final ArrayList<LogLine> mBatchShown = new ArrayList<>(64);
+
+    /**
+     * The time of the last line of one log buffer, and the lines which have exactly that time
+     * since "logcat -T" sends them again.
+     */
+    static class ResumePoint {
+        long mTime;
+        // mTime as printed, "MM-dd HH:mm:ss.SSS"
+        String mTimeText;
+        final HashSet<String> mLinesAtTime = new HashSet<>();
+
+        ResumePoint copy() {
+            ResumePoint p = new ResumePoint();
+            p.mTime = mTime;
+            p.mTimeText = mTimeText;
+            p.mLinesAtTime.addAll(mLinesAtTime);
+            return p;
+        }
+    }
+
+    // The buffers as logcat names them, by log id
+    final static String[] LOG_BUFFERS = {
+        "main", "radio", "events", "system", "crash", "stats", "security", "kernel"
+    };
+    final static String BUFFER_BEGIN = "--------- beginning of ";
+    final static String BUFFER_SWITCH = "--------- switch to ";
+
+    // Guarded by mBatchShown. By log id, each buffer resumes from its own last line
+    private final ResumePoint[] mResumePoints = new ResumePoint[LOG_BUFFERS.length];
+    // Guarded by mBatchShown. The buffer of the text lines as told by the last divider of
+    // logcat, -1 if not known
+    private int mTextLogId = -1;
+    // Set while the lines sent again by a resumed logcat are skipped, by log id
+    private ResumePoint[] mOverlap;
+
+    /**
+     * Called before a capture of the given source starts. When resuming, returns the logcat
+     * arguments to start from the oldest of the last lines received of the buffers of that
+     * source, else an empty string. The lines each buffer already has are skipped then.
+     */
+    String beginCapture(LogcatPlus.LogSource source, boolean resume) {
+        synchronized (mBatchShown) {
+            mOverlap = null;
+            // A single buffer may be printed without divider
+            int buffers = 0;
+            mTextLogId = -1;
+            for (int id = 0; id < LOG_BUFFERS.length; id++) {
+                if (source.reads(LOG_BUFFERS[id])) {
+                    buffers++;
+                    mTextLogId = id;
+                }
+            }
+            if (buffers != 1) {
+                mTextLogId = -1;
+            }
+            if (!resume) {
+                return "";
+            }
+            ResumePoint from = null;
+            ResumePoint[] overlap = new ResumePoint[LOG_BUFFERS.length];
+            for (int id = 0; id < LOG_BUFFERS.length; id++) {
+                ResumePoint point = mResumePoints[id];
+                if (point == null || !source.reads(LOG_BUFFERS[id])) {
+                    continue;
+                }
+                overlap[id] = point.copy();
+                if (from == null || point.mTime < from.mTime) {
+                    from = point;
+                }
+            }
+            if (from == null) {
+                return "";
+            }
+            mOverlap = overlap;
+            return " -T '" + from.mTimeText + "'";
+        }
+    }
+
+    // The log id of the line, the text lines follow the dividers of logcat
+    private int logIdLocked(LogLine.DeviceForUI line) {
+        if (line.mLogId >= 0) {
+            return line.mLogId;
+        }
+        if (line.getTime() == 0) {
+            String msg = line.mMsg;
+            String name = msg.startsWith(BUFFER_BEGIN) ? msg.substring(BUFFER_BEGIN.length())
+                    : msg.startsWith(BUFFER_SWITCH) ? msg.substring(BUFFER_SWITCH.length())
+                    : null;
+            if (name != null) {
+                // Old versions print the device, /dev/log/main
+                name = name.substring(name.lastIndexOf('/') + 1).trim();
+                for (int id = 0; id < LOG_BUFFERS.length; id++) {
+                    if (LOG_BUFFERS[id].equals(name)) {
+                        mTextLogId = id;
+                    }
+                }
+            }
+        }
+        return mTextLogId;
+    }
+
+    /**
+     * Follows the last line of each buffer, and removes the lines which were received before
+     * a resumed capture, until each buffer has a newer line.
+     */
+    private void trackResumePointsLocked(List<LogLine.DeviceForUI> lines) {
+        int kept = 0;
+        for (int i = 0, s = lines.size(); i < s; i++) {
+            LogLine.DeviceForUI line = lines.get(i);
+            final int id = logIdLocked(line);
+            final long time = line.getTime();
+            if (mOverlap != null && id >= 0 && mOverlap[id] != null) {
+                ResumePoint overlap = mOverlap[id];
+                if (time == 0 || time < overlap.mTime
+                        || (time == overlap.mTime && overlap.mLinesAtTime.contains(line.mMsg))) {
+                    continue;
+                }
+                mOverlap[id] = null;
+            }
+            if (id >= 0 && time != 0) {
+                ResumePoint point = mResumePoints[id];
+                if (point == null) {
+                    point = mResumePoints[id] = new ResumePoint();
+                }
+                if (point.mTimeText == null || time > point.mTime) {
+                    point.mTime = time;
+                    point.mTimeText = line.getTimeString();
+                    point.mLinesAtTime.clear();
+                }
+                if (time == point.mTime) {
+                    point.mLinesAtTime.add(line.mMsg);
+                }
+            }
+            lines.set(kept++, line);
+        }
+        lines.subList(kept, lines.size()).clear();
+    }
+
+    /**
+     * Whether {@link #onLog(List)} can take lines without holding the reader, see
+     * {@link LogcatPlus.OverloadMode#BLOCK}. A reader shared by several devices stops reading
+     * this one while false instead.
+     */
+    public boolean isReady() {
+        return mPublisher.hasRoom();
+    }
+
+    /**
+     * Adds the lines of one read from the device. The store is locked once for the whole batch
+     * and the lines to show go to the pane with the next frame. The lines sent again by a
+     * resumed capture are removed from the given list.
+     */
+    public void onLog(List<LogLine.DeviceForUI> lines) {
+        mPublisher.awaitRoom(lines.size());
+        synchronized (mBatchShown) {
+            trackResumePointsLocked(lines);
+            if (!mPaused) {
+                final LineFilter filter = mL.mFilter;
+                for (int i = 0, s = lines.size(); i < s; i++) {
+                    LogLine.DeviceForUI line = lines.get(i);
+                    if (filter.accept(line)) {
+                        mBatchShown.add(line);
+                    }
+                }
+            }
+            mLogs.addAll(lines);
+            checkTrimLog();
+            if (!mBatchShown.isEmpty()) {
+                mPublisher.offer(mBatchShown);
+                mBatchShown.clear();
+            }
+        }
+    }
+
+    void setFrameRate(int frameRate) {
+        mPublisher.setFrameRate(frameRate);
+    }
+
+    /** Adds the dropped, sampled out and delayed line counts of this log to counts. */
+    void addOverloadCounts(long[] counts) {
+        synchronized (mPublisher) {
+            counts[0] += mPublisher.mDropped;
+            counts[1] += mPublisher.mSampled;
+            counts[2] += mPublisher.mDelayed;
+        }
+    }
+
+    void clear() {
+        mLogs.clear();
+        close();
+        mPartial = false;
+        emptyPane();
+        mPublisher.resetCounters();
+    }
+
+    /** Closes the file of the saved session shown, if any. */
+    void close() {
+        SessionArchive archive;
+        synchronized (mBatchShown) {
+            archive = mArchive;
+            mArchive = null;
+        }
+        if (archive != null) {
+            try {
+                archive.close();
+            } catch (IOException e) {
+                LLog.ex(e);
+            }
+        }
+    }
+
+    void emptyPane() {
+        mPublisher.clear();
+    }
+
+    void setText(final String text) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    resetPane(text);
+                }
+            });
+        } else {
+            resetPane(text);
+        }
+    }
+
+    /**
+     * Called by the reader under the ingest lock. Drops the oldest segments which are out of the
+     * retention of {@link LogcatPlus}, and the pane follows at the same line.
+     */
+    private void checkTrimLog() {
+        long first = mLogs.trimToRetain(mL.getRetainBytes(), mL.mRetainAge);
+        if (first >= 0) {
+            mPublisher.trim(first);
+        }
+    }
+
+    /** Applies a retention which was lowered while the device is quiet. */
+    void checkRetention() {
+        synchronized (mBatchShown) {
+            checkTrimLog();
+        }
+    }
+
+    /**
+     * Adds the line count, the bytes, the oldest time of this log and the count of lines it
+     * could not spill to retained.
+     */
+    void addRetained(long[] retained) {
+        LogStore.Snapshot logs = mLogs.snapshot();
+        retained[0] += logs.size();
+        retained[1] += logs.bytes();
+        if (logs.size() > 0) {
+            long time = logs.getTime(logs.first());
+            if (time > 0 && (retained[2] == 0 || time < retained[2])) {
+                retained[2] = time;
+            }
+        }
+        retained[3] += mLogs.mSpill.lostLines();
+    }
+
+    Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            long to;
+            synchronized (mBatchShown) {
+                to = mPaused ? mPausedIndex : Long.MAX_VALUE;
+            }
+            // The whole refresh uses the conditions it starts with
+            final LineFilter filter = mL.mFilter;
+            LogStore.Snapshot logs = mLogs.snapshot();
+            List<LogLine> recent = collectRecent(filter, logs, to);
+            // Older matches are paged in from the spill while the pane stays in retention
+            long budget = mL.getRetainBytes();
+            for (int i = 0, s = recent.size(); i < s; i++) {
+                budget -= recent.get(i).mMsg.length() + 1;
+            }
+            final long reach = mReachIndex;
+            mReachIndex = Long.MAX_VALUE;
+            ArrayList<LogLine> shown = new ArrayList<>(recent.size());
+            collectSpilled(filter, logs.first(), budget, reach, shown);
+            shown.addAll(recent);
+            synchronized (mBatchShown) {
+                // The lines published meanwhile are dropped by the clear, so take them too,
+                // except those held by the pause
+                collectShown(filter, mLogs.snapshot(), Math.min(to, logs.end()),
+                        mPaused ? mPausedIndex : Long.MAX_VALUE, shown);
+                mPublisher.clear();
+                mPublisher.publish(shown);
+                if (reach != Long.MAX_VALUE) {
+                    mPublisher.select(reach);
+                }
+            }
+        }
+    };
+
+    private final TimeIndex.Times mTimes = new TimeIndex.Times() {
+        @Override
+        public long timeAt(long index) {
+            LogStore.Snapshot logs = mLogs.snapshot();
+            if (index >= logs.first()) {
+                return index < logs.end() ? logs.getTime(index) : 0;
+            }
+            LogSpill.Entry entry = mLogs.mSpill.find(index);
+            if (entry == null) {
+                return 0;
+            }
+            try {
+                LogLine.DeviceForUI[] lines = mLogs.mSpill.load(entry);
+                int i = (int) (index - entry.mFirst);
+                return i < lines.length ? lines[i].getTime() : 0;
+            } catch (IOException e) {
+                return 0;
+            }
+        }
+    };
+
+    /**
+     * Selects the first line at or after the given device time, it is found by the time index
+     * of the store. If the line is older than the pane, the refresh pages it in from the spill,
+     * within {@link #REACH_OVER_RETENTION} times the retention.
+     */
+    void goToTime(final long time) {
+        LogcatPlus.sRerfeshEs.execute(new Runnable() {
+            @Override
+            public void run() {
+                LogStore.Snapshot logs = mLogs.snapshot();
+                long index = mLogs.mTimeIndex.find(time, mTimes, logs.end());
+                if (index < 0) {
+                    LLog.i("No line at or after the time in " + getName());
+                    return;
+                }
+                mReachIndex = Math.max(index, mLogs.mSpill.first(logs.first()));
+                mRefresh.run();
+            }
+        });
+    }
+
+    void refresh() {
+        LogcatPlus.sRerfeshEs.execute(mRefresh);
+    }
+
+    /** The store indices of the matches of a filter, up to an end index. */
+    private static final class Matches {
+        final LineFilter mFilter;
+        // Ordered, not modified once kept
+        final long[] mIndices;
+        final long mEnd;
+
+        Matches(LineFilter filter, List<LogLine> lines, long end) {
+            mFilter = filter;
+            mIndices = new long[lines.size()];
+            for (int i = 0; i < mIndices.length; i++) {
+                mIndices[i] = ((LogLine.DeviceForUI) lines.get(i)).mIndex;
+            }
+            mEnd = end;
+        }
+    }
+
+    // Filters whose matches are kept for the next refreshes
+    final static int KEPT_MATCHES = 8;
+    // Indices kept for all of them, 8 bytes each
+    final static int KEPT_INDICES = 1 << 20;
+    // Used by the refresh only, the matches of the latest filters, newest last
+    private final ArrayDeque<Matches> mKeptMatches = new ArrayDeque<>();
+    private long mKeptIndices;
+
+    /**
+     * Collects the matches in the store up to the given index. The matches of the latest
+     * filters are kept as store indices, so for a filter equal to one of them only the newer
+     * lines are filtered, and for a narrower one, such as when a term is typed on, only its
+     * matches are. A wider filter, such as after a backspace, finds its earlier matches if they
+     * are kept. The kept lines are decoded again from the store.
+     */
+    private List<LogLine> collectRecent(LineFilter filter, LogStore.Snapshot logs, long to) {
+        final long first = logs.first();
+        final long end = Math.min(to, logs.end());
+        Matches base = null;
+        boolean same = false;
+        for (Matches m : mKeptMatches) {
+            if (m.mEnd > end || !filter.narrows(m.mFilter)) {
+                continue;
+            }
+            boolean equal = m.mFilter.narrows(filter);
+            if (base == null || equal && !same
+                    || !same && m.mIndices.length < base.mIndices.length) {
+                base = m;
+                same = equal;
+            }
+        }
+        ArrayList<LogLine> lines = new ArrayList<>(base != null ? base.mIndices.length : 1024);
+        long from = first;
+        if (base != null) {
+            // The lines trimmed from the store are dropped
+            final long[] kept = base.mIndices;
+            int i = Arrays.binarySearch(kept, first);
+            for (i = i < 0 ? -i - 1 : i; i < kept.length; i++) {
+                LogLine.DeviceForUI line = logs.get(kept[i]);
+                if (same || filter.accept(line)) {
+                    lines.add(line);
+                }
+            }
+            from = Math.max(first, base.mEnd);
+            if (same) {
+                mKeptMatches.remove(base);
+                mKeptIndices -= base.mIndices.length;
+            }
+        }
+        collectShown(filter, logs, from, end, lines);
+        Matches recent = new Matches(filter, lines, end);
+        mKeptMatches.add(recent);
+        mKeptIndices += recent.mIndices.length;
+        while (!mKeptMatches.isEmpty()
+                && (mKeptMatches.size() > KEPT_MATCHES || mKeptIndices > KEPT_INDICES)) {
+            mKeptIndices -= mKeptMatches.removeFirst().mIndices.length;
+        }
+        return lines;
+    }
+
+    /** Forgets the kept matches, they are found again by the next refresh. */
+    void dropKeptMatches() {
+        LogcatPlus.sRerfeshEs.execute(new Runnable() {
+            @Override
+            public void run() {
+                mKeptMatches.clear();
+                mKeptIndices = 0;
+            }
+        });
+    }
+
+    // Lines filtered by one task of a refresh, longer ranges are split
+    final static int TASK_LINES = 8 * LogStore.SEGMENT_SIZE;
+
+    /**
+     * Adds the lines of the store which pass the filter, in order. Long ranges are filtered by
+     * segments in parallel over {@link LogcatPlus#sFilterPool}.
+     */
+    private void collectShown(LineFilter filter, LogStore.Snapshot logs, long from, long to,
+            List<LogLine> out) {
+        from = Math.max(from, logs.first());
+        to = Math.min(to, logs.end());
+        if (to - from > TASK_LINES) {
+            out.addAll(LogcatPlus.sFilterPool.invoke(new ShownTask(filter, logs, from, to)));
+        } else {
+            collectRange(filter, logs, from, to, out);
+        }
+    }
+
+    /** Filters a range of the store, the halves are split on a segment boundary. */
+    private static final class ShownTask extends RecursiveTask<List<LogLine>> {
+        private static final long serialVersionUID = 1L;
+
+        private final LineFilter mFilter;
+        private final LogStore.Snapshot mLogs;
+        private final long mFrom;
+        private final long mTo;
+
+        ShownTask(LineFilter filter, LogStore.Snapshot logs, long from, long to) {
+            mFilter = filter;
+            mLogs = logs;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected List<LogLine> compute() {
+            if (mTo - mFrom <= TASK_LINES) {
+                ArrayList<LogLine> out = new ArrayList<>();
+                collectRange(mFilter, mLogs, mFrom, mTo, out);
+                return out;
+            }
+            long mid = ((mFrom + mTo) >>> 1) & ~LogStore.SEGMENT_MASK;
+            ShownTask older = new ShownTask(mFilter, mLogs, mFrom, mid);
+            older.fork();
+            List<LogLine> newer = new ShownTask(mFilter, mLogs, mid, mTo).compute();
+            List<LogLine> out = older.join();
+            out.addAll(newer);
+            return out;
+        }
+    }
+
+    /**
+     * Adds the lines in [from, to) of the store which pass the filter. The level and tag
+     * conditions are answered by the bitmaps of each segment, only the lines which pass them
+     * are decoded for the text conditions.
+     */
+    private static void collectRange(LineFilter filter, LogStore.Snapshot logs, long from,
+            long to, List<LogLine> out) {
+        final long[] mask = new long[LogStore.Segment.WORDS];
+        final long[] scratch = new long[LogStore.Segment.WORDS];
+        for (long start = from & ~LogStore.SEGMENT_MASK; start < to;
+                start += LogStore.SEGMENT_SIZE) {
+            int count = (int) Math.min(LogStore.SEGMENT_SIZE, logs.end() - start);
+            filter.select(logs.segment(start), count, mask, scratch);
+            int lo = (int) (Math.max(from, start) - start);
+            int hi = (int) (Math.min(to, start + count) - start);
+            for (int w = lo >> 6; w < mask.length && (w << 6) < hi; w++) {
+                long bits = mask[w];
+                while (bits != 0) {
+                    int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    if (i < lo || i >= hi) {
+                        continue;
+                    }
+                    LogLine.DeviceForUI line = logs.get(start + i);
+                    if (filter.acceptText(line)) {
+                        out.add(line);
+                    }
+                }
+            }
+        }
+    }
+
+    // How far over the retention a refresh may go to reach a line
+    final static int REACH_OVER_RETENTION = 3;
+
+    /**
+     * Adds the spilled lines before the given index which pass the filter, in order. They are
+     * taken from the newest segment back until their text reaches the budget in chars, or the
+     * reach index if it is older, not over {@link #REACH_OVER_RETENTION} times the retention.
+     * Segments without a line of the current level are not read. Sets {@link #mPartial} if older
+     * segments are left.
+     */
+    private void collectSpilled(LineFilter filter, long before, long budget, long reach,
+            List<LogLine> out) {
+        final LogSpill spill = mLogs.mSpill;
+        final int minLevel = filter.mMinLevel;
+        final long limit = -REACH_OVER_RETENTION * mL.getRetainBytes();
+        boolean partial = false;
+        ArrayList<ArrayList<LogLine>> parts = new ArrayList<>();
+        for (int i = spill.size() - 1; i >= 0; i--) {
+            LogSpill.Entry entry = spill.get(i);
+            if (budget <= 0 && (entry.mFirst + entry.mCount <= reach || budget <= limit)) {
+                partial = true;
+                break;
+            }
+            if (entry.mFirst >= before || !entry.hasLevel(minLevel)) {
+                continue;
+            }
+            LogLine.DeviceForUI[] lines;
+            try {
+                lines = spill.load(entry);
+            } catch (IOException e) {
+                LLog.e("Cannot read spilled lines, " + e);
+                partial = true;
+                break;
+            }
+            ArrayList<LogLine> part = new ArrayList<>();
+            for (LogLine.DeviceForUI line : lines) {
+                if (line.mIndex < before && filter.accept(line)) {
+                    part.add(line);
+                    budget -= line.mMsg.length() + 1;
+                }
+            }
+            parts.add(part);
+        }
+        mPartial = partial;
+        for (int i = parts.size() - 1; i >= 0; i--) {
+            out.addAll(parts.get(i));
+        }
+    }
+
+    /** Writes every line of this log, spilled or in memory, to the file as UTF-8. */
+    void export(File file) throws IOException {
+        LogStore.Snapshot logs = mLogs.snapshot();
+        LogSpill spill = mLogs.mSpill;
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), LogStore.UTF_8))) {
+            for (int i = 0, s = spill.size(); i < s; i++) {
+                LogSpill.Entry entry = spill.get(i);
+                if (entry.mFirst >= logs.first()) {
+                    break;
+                }
+                for (LogLine.DeviceForUI line : spill.load(entry)) {
+                    if (line.mIndex < logs.first()) {
+                        out.write(line.mMsg);
+                        out.write('\n');
+                    }
+                }
+            }
+            for (long i = logs.first(), end = logs.end(); i < end; i++) {
+                out.write(logs.get(i).mMsg);
+                out.write('\n');
+            }
+        }
+    }
+
+    /** Saves every line of this log, spilled or in memory, as a session archive. */
+    void save(File file) throws IOException {
+        SessionArchive.save(mLogs, file);
+    }
+
+    /** Replaces the lines of this log by those of a saved session, and shows them. */
+    void open(SessionArchive archive) throws IOException {
+        close();
+        synchronized (mBatchShown) {
+            mArchive = archive;
+            mLogs.attach(archive);
+            mPublisher.clear();
+        }
+        refresh();
+    }
+
+    void setPause(boolean pause) {
+        synchronized (mBatchShown) {
+            if (pause == mPaused) {
+                return;
+            }
+            mPaused = pause;
+            if (pause) {
+                mPausedIndex = mLogs.end();
+            } else {
+                ArrayList<LogLine> shown = new ArrayList<>(1024);
+                collectShown(mL.mFilter, mLogs.snapshot(), mPausedIndex, Long.MAX_VALUE, shown);
+                mPublisher.publish(shown);
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2014 Riddle Hsu
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rh.tools.logcat;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.rh.util.StringUtil;
+
+/**
+ * The filter conditions of {@link LogcatPlus} compiled into an immutable object. A new one is
+ * published when a condition changes, so the reader and the refresh threads evaluate one
+ * consistent set of conditions and never read the Swing fields. Evaluating a line creates no
+ * object.
+ */
+final class LineFilter {
+    // How the terms of a text condition combine
+    final static int TEXT_NONE = 0;
+    final static int TEXT_ALL = 1;
+    final static int TEXT_ANY = 2;
+    final static int TEXT_REGEX = 3;
+
+    static final LineFilter NONE = new LineFilter(0, null, null,
+            TEXT_NONE, null, null, TEXT_NONE, null, null);
+
+    final int mMinLevel;
+    final TagDictionary.Filter mIncludeTags;
+    final TagDictionary.Filter mExcludeTags;
+    private final int mIncludeMode;
+    private final String[] mIncludeSource;
+    private final StringUtil.IgnoreCaseMatcher[] mIncludeTerms;
+    // All the terms in one pass, when any of several terms is enough
+    private final StringUtil.AhoCorasick mIncludeAny;
+    private final Pattern mIncludePattern;
+    private final ThreadLocal<Matcher> mIncludeRegex;
+    private final int mExcludeMode;
+    private final String[] mExcludeSource;
+    private final StringUtil.IgnoreCaseMatcher[] mExcludeTerms;
+    private final StringUtil.AhoCorasick mExcludeAny;
+    private final Pattern mExcludePattern;
+    private final ThreadLocal<Matcher> mExcludeRegex;
+
+    /**
+     * The tag filters are null to accept any tag. The terms are matched ignoring case. A regular
+     * expression mode with a null pattern matches no line.
+     */
+    LineFilter(int minLevel, TagDictionary.Filter includeTags, TagDictionary.Filter excludeTags,
+            int includeMode, String[] includeTerms, Pattern includeRegex,
+            int excludeMode, String[] excludeTerms, Pattern excludeRegex) {
+        mMinLevel = minLevel;
+        mIncludeTags = includeTags;
+        mExcludeTags = excludeTags;
+        mIncludeMode = includeMode;
+        mIncludeSource = includeTerms;
+        mIncludeTerms = matchersOf(includeTerms);
+        mIncludeAny = includeMode == TEXT_ANY ? automatonOf(includeTerms) : null;
+        mIncludePattern = includeRegex;
+        mIncludeRegex = matcherOf(includeRegex);
+        mExcludeMode = excludeMode;
+        mExcludeSource = excludeTerms;
+        mExcludeTerms = matchersOf(excludeTerms);
+        mExcludeAny = excludeMode != TEXT_REGEX ? automatonOf(excludeTerms) : null;
+        mExcludePattern = excludeRegex;
+        mExcludeRegex = matcherOf(excludeRegex);
+    }
+
+    private static StringUtil.IgnoreCaseMatcher[] matchersOf(String[] terms) {
+        if (terms == null) {
+            return null;
+        }
+        StringUtil.IgnoreCaseMatcher[] matchers = new StringUtil.IgnoreCaseMatcher[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            matchers[i] = new StringUtil.IgnoreCaseMatcher(terms[i]);
+        }
+        return matchers;
+    }
+
+    private static StringUtil.AhoCorasick automatonOf(String[] terms) {
+        return terms != null && terms.length > 1 ? new StringUtil.AhoCorasick(terms, true) : null;
+    }
+
+    private static boolean findAny(StringUtil.AhoCorasick any,
+            StringUtil.IgnoreCaseMatcher[] terms, String text) {
+        if (any != null) {
+            return any.contains(text);
+        }
+        for (StringUtil.IgnoreCaseMatcher m : terms) {
+            if (m.find(text)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Each thread resets its own matcher instead of creating one per line
+    private static ThreadLocal<Matcher> matcherOf(final Pattern p) {
+        if (p == null) {
+            return null;
+        }
+        return new ThreadLocal<Matcher>() {
+            @Override
+            protected Matcher initialValue() {
+                return p.matcher("");
+            }
+        };
+    }
+
+    private static boolean find(ThreadLocal<Matcher> regex, String text) {
+        return regex != null && regex.get().reset(text).find();
+    }
+
+    /**
+     * Whether every line accepted by this filter is accepted by wider, so the matches of wider
+     * can be filtered again instead of the store, such as when a term is typed on. It may
+     * answer false for some such pairs, never true for others. Equal filters narrow each other.
+     */
+    boolean narrows(LineFilter wider) {
+        return mMinLevel >= wider.mMinLevel
+                && (wider.mIncludeTags == null || wider.mIncludeTags == mIncludeTags)
+                && (wider.mExcludeTags == null || wider.mExcludeTags == mExcludeTags)
+                && includeNarrows(wider) && excludeNarrows(wider);
+    }
+
+    private boolean includeNarrows(LineFilter wider) {
+        switch (wider.mIncludeMode) {
+            case TEXT_NONE:
+                return true;
+            case TEXT_REGEX:
+                return mIncludeMode == TEXT_REGEX && samePattern(mIncludePattern,
+                        wider.mIncludePattern);
+        }
+        if (mIncludeMode != TEXT_ALL && mIncludeMode != TEXT_ANY) {
+            return false;
+        }
+        // A line accepted by this has every term of this if all, else one of them
+        final boolean all = mIncludeMode == TEXT_ALL;
+        if (wider.mIncludeMode == TEXT_ALL) {
+            for (StringUtil.IgnoreCaseMatcher p : wider.mIncludeTerms) {
+                if (all ? !anyFound(p, mIncludeSource) : !allFound(p, mIncludeSource)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        for (String t : mIncludeSource) {
+            boolean found = false;
+            for (StringUtil.IgnoreCaseMatcher p : wider.mIncludeTerms) {
+                found |= p.find(t);
+            }
+            if (all && found) {
+                return true;
+            }
+            if (!all && !found) {
+                return false;
+            }
+        }
+        return !all;
+    }
+
+    private boolean excludeNarrows(LineFilter wider) {
+        switch (wider.mExcludeMode) {
+            case TEXT_NONE:
+                return true;
+            case TEXT_REGEX:
+                return mExcludeMode == TEXT_REGEX && samePattern(mExcludePattern,
+                        wider.mExcludePattern);
+        }
+        if (mExcludeMode != TEXT_ALL && mExcludeMode != TEXT_ANY) {
+            return false;
+        }
+        // A line with a term of wider has a term of this, which excludes it too
+        for (String p : wider.mExcludeSource) {
+            boolean found = false;
+            for (StringUtil.IgnoreCaseMatcher t : mExcludeTerms) {
+                found |= t.find(p);
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean anyFound(StringUtil.IgnoreCaseMatcher m, String[] texts) {
+        for (String text : texts) {
+            if (m.find(text)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean allFound(StringUtil.IgnoreCaseMatcher m, String[] texts) {
+        for (String text : texts) {
+            if (!m.find(text)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean samePattern(Pattern a, Pattern b) {
+        return a == b || a != null && b != null && a.pattern().equals(b.pattern())
+                && a.flags() == b.flags();
+    }
+
+    boolean hasText() {
+        return mIncludeMode != TEXT_NONE || mExcludeMode != TEXT_NONE;
+    }
+
+    boolean accept(LogLine.DeviceForUI line) {
+        if (line.getLevel().value < mMinLevel) {
+            return false;
+        }
+        int tagId = line.getTagId();
+        if (mExcludeTags != null && mExcludeTags.matches(tagId)) {
+            return false;
+        }
+        if (mIncludeTags != null && !mIncludeTags.matches(tagId)) {
+            return false;
+        }
+        return acceptText(line);
+    }
+
+    /**
+     * Sets in mask the lines of the store segment, below count, which pass the level and tag
+     * conditions of {@link #accept}, by the bitmaps of the segment.
+     */
+    void select(LogStore.Segment seg, int count, long[] mask, long[] scratch) {
+        seg.select(count, mMinLevel, mIncludeTags, mExcludeTags, mask, scratch);
+    }
+
+    /** The text conditions of {@link #accept}, for the lines which pass the others. */
+    boolean acceptText(LogLine.DeviceForUI line) {
+        if (!hasText()) {
+            return true;
+        }
+        final String msg = line.mMsg;
+        switch (mExcludeMode) {
+            case TEXT_ANY:
+            case TEXT_ALL:
+                // Any term excludes
+                if (findAny(mExcludeAny, mExcludeTerms, msg)) {
+                    return false;
+                }
+                break;
+            case TEXT_REGEX:
+                if (find(mExcludeRegex, msg)) {
+                    return false;
+                }
+                break;
+        }
+        switch (mIncludeMode) {
+            case TEXT_ALL:
+                for (StringUtil.IgnoreCaseMatcher m : mIncludeTerms) {
+                    if (!m.find(msg)) {
+                        return false;
+                    }
+                }
+                return true;
+            case TEXT_ANY:
+                return findAny(mIncludeAny, mIncludeTerms, msg);
+            case TEXT_REGEX:
+                return find(mIncludeRegex, msg);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,463 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2014 Riddle Hsu
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.rh.tools.logcat;
+
+import java.awt.Color;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+class LogLine {
+    public static final int FORMAT_LOGCAT_LEVEL_POS = 31;
+    final static Color sMyGreen = new Color(0, 150, 0);
+    final static Color sMyOrange = new Color(230, 140, 0);
+    // Shared by all devices, so the tag filters resolve once for all of them
+    final static TagDictionary sTags = new TagDictionary();
+    final public String mMsg;
+    private String mTmpTimeStr;
+
+    /**
+     * A part of a line which can be matched as a {@link CharSequence} without creating a
+     * substring. It is meant to be reused by one thread.
+     */
+    public static final class Slice implements CharSequence {
+        private String mSrc = "";
+        private int mStart;
+        private int mEnd;
+
+        public Slice set(String src, int start, int end) {
+            mSrc = src;
+            mStart = start;
+            mEnd = end;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return mEnd - mStart;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return mSrc.charAt(mStart + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return mSrc.subSequence(mStart + start, mStart + end);
+        }
+
+        @Override
+        public String toString() {
+            return mSrc.substring(mStart, mEnd);
+        }
+    }
+
+    public Color getColor() {
+        return Color.BLACK;
+    }
+
+    public LogLine(String s) {
+        mMsg = s == null ? "" : s;
+    }
+
+    public String getContent() {
+        return mMsg;
+    }
+
+    public String getTag() {
+        return "";
+    }
+
+    public String getTimeString() {
+        return "";
+    }
+
+    public String getTimeStr() {
+        if (mTmpTimeStr == null) {
+            mTmpTimeStr = getTimeString();
+        }
+        return mTmpTimeStr;
+    }
+
+    public String getPidStr() {
+        return "";
+    }
+
+    public String getTidStr() {
+        return "";
+    }
+
+    @Override
+    public String toString() {
+        return mMsg;
+    }
+
+    public static class DefaultLine extends LogLine {
+        public DefaultLine(String line) {
+            super(line);
+        }
+
+        @Override
+        public String getTimeString() {
+            return mMsg.substring(0, 18);
+        }
+
+        public String getPidStr() {
+            return mMsg.substring(19, 24);
+        }
+
+        public String getTidStr() {
+            return mMsg.substring(25, 30);
+        }
+
+        @Override
+        public String getTag() {
+            int tEnd = mMsg.indexOf(':', 34);
+            return tEnd > 0 ? mMsg.substring(33, tEnd) : "";
+        }
+
+        @Override
+        public String getContent() {
+            int tEnd = mMsg.indexOf(':', 34);
+            if (tEnd + 2 <= mMsg.length()) {
+                return mMsg.substring(tEnd + 2);
+            }
+            return "";
+        }
+    }
+
+    /**
+     * Turns the "MM-dd HH:mm:ss.SSS" of the lines of one device into epoch millis, in the time
+     * zone of the device. The year is not printed, so the one putting the time nearest to the
+     * reference time is taken: December lines read in January stay in the past. Each reader
+     * has its own clock, it is not thread safe.
+     */
+    static class DeviceClock {
+        // Half a year, a time further from the reference belongs to the next or previous year
+        private final static long HALF_YEAR = 183 * 24 * 3600 * 1000L;
+        private final Calendar mCal;
+        // 0 to take the current time as the reference
+        private final long mNear;
+        // The minute last converted as ((month * 32 + day) * 24 + hour) * 60 + minute
+        private int mMinuteKey = -1;
+        private long mMinuteStart;
+
+        DeviceClock(TimeZone zone) {
+            this(zone, 0);
+        }
+
+        /** The year is chosen around the given time instead of the current time. */
+        DeviceClock(TimeZone zone, long near) {
+            mCal = Calendar.getInstance(zone);
+            mNear = near;
+        }
+
+        /**
+         * Returns the epoch millis of a line starting with "MM-dd HH:mm:ss.SSS", or -1 if it
+         * does not start with a time.
+         */
+        long parseTime(String s) {
+            if (s.length() < DeviceLine.TIME_LENGTH || s.charAt(2) != '-' || s.charAt(5) != ' '
+                    || s.charAt(8) != ':' || s.charAt(11) != ':' || s.charAt(14) != '.') {
+                return -1;
+            }
+            int month = digits(s, 0, 2);
+            int day = digits(s, 3, 2);
+            int hour = digits(s, 6, 2);
+            int min = digits(s, 9, 2);
+            int sec = digits(s, 12, 2);
+            int ms = digits(s, 15, 3);
+            if (month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23
+                    || min < 0 || min > 59 || sec < 0 || ms < 0) {
+                return -1;
+            }
+            // Time zone transitions fall on whole minutes, so the seconds can be added
+            int key = ((month * 32 + day) * 24 + hour) * 60 + min;
+            if (key != mMinuteKey) {
+                mMinuteStart = minuteStart(month, day, hour, min);
+                mMinuteKey = key;
+            }
+            return mMinuteStart + sec * 1000L + ms;
+        }
+
+        private long minuteStart(int month, int day, int hour, int min) {
+            final long near = mNear != 0 ? mNear : System.currentTimeMillis();
+            mCal.setTimeInMillis(near);
+            int year = mCal.get(Calendar.YEAR);
+            long time = minuteStart(year, month, day, hour, min);
+            if (time - near > HALF_YEAR) {
+                time = minuteStart(year - 1, month, day, hour, min);
+            } else if (near - time > HALF_YEAR) {
+                time = minuteStart(year + 1, month, day, hour, min);
+            }
+            return time;
+        }
+
+        private long minuteStart(int year, int month, int day, int hour, int min) {
+            mCal.clear();
+            mCal.set(year, month - 1, day, hour, min);
+            return mCal.getTimeInMillis();
+        }
+
+        private static int digits(String s, int start, int count) {
+            int v = 0;
+            for (int i = start; i < start + count; i++) {
+                char c = s.charAt(i);
+                if (!DeviceLine.isDigit(c)) {
+                    return -1;
+                }
+                v = v * 10 + c - '0';
+            }
+            return v;
+        }
+    }
+
+    /**
+     * A "logcat -v threadtime" line. It is parsed once when created, the fields are kept as
+     * numbers and offsets into {@link #mMsg}, so reading them later allocates nothing.
+     */
+    public static class DeviceLine extends DefaultLine {
+        // "MM-dd HH:mm:ss.SSS"
+        final static int TIME_LENGTH = 18;
+
+        // Epoch millis, 0 if the line has no time
+        long mTime;
+        int mPid;
+        int mTid;
+        // The level letter, 0 if the line has none
+        byte mLevel;
+        // Id in sTags, 0 (the empty tag) and mMsgStart == 0 if the line is not in threadtime
+        int mTagId;
+        int mMsgStart;
+        // The buffer of a line decoded from a binary entry, -1 for the other lines
+        byte mLogId = -1;
+
+        public DeviceLine(String line, DeviceClock clock) {
+            super(line);
+            parse(clock);
+        }
+
+        // For lines built from binary entries, which already know their fields
+        DeviceLine(String line, long time, int pid, int tid, char level, int tagId,
+                int msgStart) {
+            super(line);
+            mTime = time;
+            mPid = pid;
+            mTid = tid;
+            mLevel = (byte) level;
+            mTagId = tagId;
+            mMsgStart = msgStart;
+        }
+
+        private void parse(DeviceClock clock) {
+            final String s = mMsg;
+            final int len = s.length();
+            long time = clock.parseTime(s);
+            if (time < 0) {
+                return;
+            }
+            // Scan instead of fixed columns, pid and tid may be wider than 5 digits
+            int i = skipSpaces(s, TIME_LENGTH);
+            int pid = 0;
+            for (; i < len && isDigit(s.charAt(i)); i++) {
+                pid = pid * 10 + s.charAt(i) - '0';
+            }
+            i = skipSpaces(s, i);
+            int tid = 0;
+            for (; i < len && isDigit(s.charAt(i)); i++) {
+                tid = tid * 10 + s.charAt(i) - '0';
+            }
+            i = skipSpaces(s, i);
+            if (i + 2 >= len) {
+                return;
+            }
+            char level = s.charAt(i);
+            int tagStart = i + 2;
+            int colon = s.indexOf(": ", tagStart);
+            if (colon < 0) {
+                if (!s.endsWith(":")) {
+                    return;
+                }
+                colon = len - 1;
+            }
+            int tagEnd = colon;
+            while (tagEnd > tagStart && s.charAt(tagEnd - 1) == ' ') {
+                tagEnd--;
+            }
+            mTime = time;
+            mPid = pid;
+            mTid = tid;
+            mLevel = (byte) level;
+            mTagId = sTags.idOf(s, tagStart, tagEnd);
+            mMsgStart = Math.min(colon + 2, len);
+        }
+
+        static boolean isDigit(char c) {
+            return c >= '0' && c <= '9';
+        }
+
+        private static int skipSpaces(String s, int i) {
+            while (i < s.length() && s.charAt(i) == ' ') {
+                i++;
+            }
+            return i;
+        }
+
+        public long getTime() {
+            return mTime;
+        }
+
+        public int getPid() {
+            return mPid;
+        }
+
+        public int getTid() {
+            return mTid;
+        }
+
+        public char getLevelChar() {
+            return (char) mLevel;
+        }
+
+        public int getTagId() {
+            return mTagId;
+        }
+
+        public Slice getContent(Slice out) {
+            return out.set(mMsg, mMsgStart, mMsg.length());
+        }
+
+        @Override
+        public String getTimeString() {
+            return mTime != 0 ? mMsg.substring(0, TIME_LENGTH) : "";
+        }
+
+        @Override
+        public String getPidStr() {
+            return mTime != 0 ? Integer.toString(mPid) : "";
+        }
+
+        @Override
+        public String getTidStr() {
+            return mTime != 0 ? Integer.toString(mTid) : "";
+        }
+
+        @Override
+        public String getTag() {
+            return sTags.get(mTagId);
+        }
+
+        @Override
+        public String getContent() {
+            return mMsg.substring(mMsgStart);
+        }
+    }
+
+    static class DeviceForUI extends DeviceLine {
+        static enum Level {
+            V('V', "V", 0, Color.BLACK),
+            D('D', "D", 1, Color.BLUE),
+            I('I', "I", 2, sMyGreen),
+            W('W', "W", 3, sMyOrange),
+            E('E', "E", 4, Color.RED),
+            F('F', "F", 5, Color.DARK_GRAY);
+            public final char label;
+            public final String text;
+            public final int value;
+            public final Color color;
+            Level(char l, String t, int v, Color c) {
+                label = l;
+                text = t;
+                value = v;
+                color = c;
+            }
+        }
+        final static Level[] sLogLevels = Level.values();
+        final static Level[] sLogLevelMap = new Level[128];
+
+        // Absolute index in the store of the device, -1 until it is stored
+        long mIndex = -1;
+
+        static {
+            for (Level l : sLogLevels) {
+                sLogLevelMap[l.label - 'A'] = l;
+            }
+        }
+
+        static Level getLevelByString(String str) {
+            if (str.length() > FORMAT_LOGCAT_LEVEL_POS) {
+                return getLevelByChar(str.charAt(FORMAT_LOGCAT_LEVEL_POS));
+            }
+            return Level.V;
+        }
+
+        static Level getLevelByChar(int c) {
+            int levelChar = c - 'A';
+            if (levelChar > 0 && levelChar < sLogLevelMap.length
+                    && sLogLevelMap[levelChar] != null) {
+                return sLogLevelMap[levelChar];
+            }
+            return Level.V;
+        }
+
+        // android_LogPriority: 2 is VERBOSE ... 7 is FATAL
+        static Level getLevelByPriority(int priority) {
+            int index = priority - 2;
+            if (index < 0) {
+                return Level.V;
+            }
+            return index < sLogLevels.length ? sLogLevels[index] : Level.F;
+        }
+
+        DeviceForUI(String rawLine, long time, int pid, int tid, Level l, int tagId,
+                int msgStart) {
+            super(rawLine, time, pid, tid, l.label, tagId, msgStart);
+        }
+
+        // For lines decoded from the store
+        DeviceForUI(String rawLine, long time, int pid, int tid, char level, int tagId,
+                int msgStart) {
+            super(rawLine, time, pid, tid, level, tagId, msgStart);
+        }
+
+        DeviceForUI(String rawLine, DeviceClock clock) {
+            super(rawLine, clock);
+        }
+
+        Level getLevel() {
+            return getLevelByChar(mLevel);
+        }
+
+        @Override
+        public Color getColor() {
+            return getLevel().color;
+        }
+    }
+}
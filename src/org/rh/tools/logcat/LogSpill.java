@@ -0,0 +1,523 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2014 Riddle Hsu
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rh.tools.logcat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.rh.util.LLog;
+
+/**
+ * The segments a {@link LogStore} drops, compressed into one file of the session directory.
+ * They are written in the background, in order, and stay readable from memory until they are.
+ * Each record is a header followed by the deflated lines:
+ *
+ * <pre>
+ * int magic, long first index, int line count, long min time, long max time,
+ * int[6] line count by level, int raw length, int compressed length
+ * </pre>
+ *
+ * The header is kept in memory as an {@link Entry}, so whole segments can be skipped by level
+ * or time without reading them back. A file is reused from its start once it reaches
+ * {@link #sMaxFileBytes}, the segments it overwrites are lost.
+ */
+class LogSpill {
+    final static int MAGIC = 0x4c534547; // "LSEG"
+    final static int LEVELS = LogLine.DeviceForUI.sLogLevels.length;
+    final static int HEADER_LENGTH = 4 + 8 + 4 + 8 + 8 + 4 * LEVELS + 4 + 4;
+    // Decoded segments kept for the next refresh
+    final static int CACHED_SEGMENTS = 16;
+    // Text of the dropped segments of all the devices waiting for the writer, over it a dropped
+    // segment is lost rather than queued
+    final static long MAX_QUEUED_BYTES = 64L << 20;
+    // Choices of the size of one spill file
+    final static int[] MAX_FILE_MB = { 256, 1024, 4096 };
+
+    static volatile long sMaxFileBytes = 1024L << 20;
+    private final static AtomicLong sQueuedBytes = new AtomicLong();
+
+    private static File sSessionDir;
+    private static int sFileCount;
+    // One writer for all the devices, the files are written sequentially
+    final static ExecutorService sWriter = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "logcat-spill");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /** The header of one spilled segment. */
+    static final class Entry {
+        final long mFirst;
+        final int mCount;
+        final long mMinTime;
+        final long mMaxTime;
+        final int[] mLevels;
+        // The lines in memory until they are written, then their record in the file
+        volatile Pending mPending;
+        volatile long mOffset = -1;
+        int mLength;
+        // Set if the lines could not be written, they are gone
+        volatile boolean mLost;
+        // The saved session the segment is read from, mOffset is then its block
+        SessionArchive mArchive;
+
+        Entry(long first, int count, long minTime, long maxTime, int[] levels,
+                Pending pending) {
+            mFirst = first;
+            mCount = count;
+            mMinTime = minTime;
+            mMaxTime = maxTime;
+            mLevels = levels;
+            mPending = pending;
+        }
+
+        /** Whether a line of the segment has at least the given level value. */
+        boolean hasLevel(int value) {
+            for (int v = value; v < LEVELS; v++) {
+                if (mLevels[v] > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The lines of one dropped segment until its record is written. They are read from the
+     * snapshot the store dropped them from, nothing is copied, and the chunks of their text are
+     * kept until then. What is kept for all the devices is bounded by {@link #MAX_QUEUED_BYTES}.
+     */
+    static final class Pending {
+        final LogStore.Snapshot mLogs;
+        final LogStore.Segment mSegment;
+        final int mBytes;
+
+        Pending(LogStore.Snapshot logs, long first) {
+            mLogs = logs;
+            mSegment = logs.segment(first);
+            mBytes = mSegment.mBytes;
+        }
+
+        LogLine.DeviceForUI get(long first, int i) {
+            return mLogs.get(first + i);
+        }
+    }
+
+    private final Object mLock = new Object();
+    // Appended under mLock, mEntries is published before mCount
+    private volatile Entry[] mEntries = new Entry[64];
+    private volatile int mCount;
+    // Used by the writer thread only
+    private FileChannel mChannel;
+    private File mFile;
+    private long mWritePos;
+    // The records in the file from the oldest, the writer drops them when it reuses the file
+    private final ArrayDeque<Entry> mWritten = new ArrayDeque<>();
+    private byte[] mText = new byte[4096];
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+    // Lines which could not be spilled, because the writer was behind or the disk failed
+    private final AtomicLong mLostLines = new AtomicLong();
+
+    private final Map<Entry, LogLine.DeviceForUI[]> mCache =
+            new LinkedHashMap<Entry, LogLine.DeviceForUI[]>(CACHED_SEGMENTS, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Entry, LogLine.DeviceForUI[]> e) {
+                    return size() > CACHED_SEGMENTS;
+                }
+            };
+
+    int size() {
+        return mCount;
+    }
+
+    Entry get(int i) {
+        return mEntries[i];
+    }
+
+    /** Returns the spilled segment which has the line of the given index, or null. */
+    Entry find(long index) {
+        final int count = mCount;
+        final Entry[] entries = mEntries;
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            int m = (lo + hi) >>> 1;
+            Entry e = entries[m];
+            if (index < e.mFirst) {
+                hi = m - 1;
+            } else if (index >= e.mFirst + e.mCount) {
+                lo = m + 1;
+            } else {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /** The count of lines which were dropped without being spilled. */
+    long lostLines() {
+        return mLostLines.get();
+    }
+
+    /** Absolute index of the oldest spilled line, or end if nothing is spilled. */
+    long first(long end) {
+        return mCount > 0 ? mEntries[0].mFirst : end;
+    }
+
+    /**
+     * Spills the given count of segments of the snapshot from its first line. Called by the
+     * store under its lock before it drops them, so only the headers are made here, the lines
+     * are read from the snapshot by the writer. A segment is lost if the writer is too far
+     * behind.
+     */
+    void spill(final LogStore.Snapshot logs, int segments) {
+        for (int s = 0; s < segments; s++) {
+            final long first = logs.first() + ((long) s << LogStore.SEGMENT_SHIFT);
+            final int count = (int) Math.min(LogStore.SEGMENT_SIZE, logs.end() - first);
+            final LogStore.Segment seg = logs.segment(first);
+            int[] levels = new int[LEVELS];
+            for (int v = 0; v < LEVELS; v++) {
+                for (long word : seg.mLevelBits[v]) {
+                    levels[v] += Long.bitCount(word);
+                }
+            }
+            final Pending pending = queue(logs, first);
+            final Entry entry = new Entry(first, count, seg.mMinTime, seg.mMaxTime, levels,
+                    pending);
+            if (pending == null) {
+                entry.mLost = true;
+                mLostLines.addAndGet(count);
+            }
+            synchronized (mLock) {
+                Entry[] entries = mEntries;
+                if (mCount == entries.length) {
+                    Entry[] grown = new Entry[entries.length * 2];
+                    System.arraycopy(entries, 0, grown, 0, entries.length);
+                    mEntries = entries = grown;
+                }
+                entries[mCount] = entry;
+                mCount++;
+            }
+            if (pending == null) {
+                continue;
+            }
+            sWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        write(entry);
+                    } finally {
+                        sQueuedBytes.addAndGet(-pending.mBytes);
+                    }
+                }
+            });
+        }
+    }
+
+    // Returns null if the text already waiting for the writer is over MAX_QUEUED_BYTES
+    private static Pending queue(LogStore.Snapshot logs, long first) {
+        Pending pending = new Pending(logs, first);
+        if (sQueuedBytes.addAndGet(pending.mBytes) > MAX_QUEUED_BYTES) {
+            sQueuedBytes.addAndGet(-pending.mBytes);
+            return null;
+        }
+        return pending;
+    }
+
+    /**
+     * Adds the blocks of a saved session as spilled segments, they are read from its file.
+     * Called by the store when it is empty.
+     */
+    void attach(SessionArchive archive) {
+        synchronized (mLock) {
+            Entry[] entries = mEntries;
+            if (mCount + archive.mEntries.length > entries.length) {
+                entries = new Entry[Math.max(64, mCount + archive.mEntries.length)];
+                System.arraycopy(mEntries, 0, entries, 0, mCount);
+                mEntries = entries;
+            }
+            System.arraycopy(archive.mEntries, 0, entries, mCount, archive.mEntries.length);
+            mCount += archive.mEntries.length;
+        }
+    }
+
+    /** Forgets the spilled segments, the file is truncated by the writer. */
+    void clear() {
+        synchronized (mLock) {
+            mEntries = new Entry[64];
+            mCount = 0;
+        }
+        synchronized (mCache) {
+            mCache.clear();
+        }
+        sWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mChannel != null) {
+                    try {
+                        mChannel.truncate(0);
+                    } catch (IOException e) {
+                        LLog.ex(e);
+                    }
+                }
+                mWritePos = 0;
+                mWritten.clear();
+            }
+        });
+    }
+
+    // Runs on the writer thread
+    private void write(Entry entry) {
+        final Pending pending = entry.mPending;
+        try {
+            if (mChannel == null) {
+                mFile = newSpillFile();
+                mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+            }
+            final LogStore.Segment seg = pending.mSegment;
+            ByteArrayOutputStream raw = new ByteArrayOutputStream(
+                    entry.mCount * (8 + 4 + 4 + 1 + 4 + 4 + 4) + pending.mBytes);
+            DataOutputStream out = new DataOutputStream(raw);
+            for (int i = 0; i < entry.mCount; i++) {
+                out.writeLong(seg.mTime[i]);
+                out.writeInt(seg.mPid[i]);
+                out.writeInt(seg.mTid[i]);
+                out.writeByte(seg.mLevel[i]);
+                out.writeInt(seg.mTagId[i]);
+                out.writeInt(seg.mMsgStart[i]);
+                if (seg.mLength[i] > mText.length) {
+                    mText = new byte[Math.max(seg.mLength[i], mText.length * 2)];
+                }
+                int length = pending.mLogs.copyText(entry.mFirst + i, mText, 0);
+                out.writeInt(length);
+                out.write(mText, 0, length);
+            }
+            out.flush();
+            byte[] rawBytes = raw.toByteArray();
+            mDeflater.reset();
+            mDeflater.setInput(rawBytes);
+            mDeflater.finish();
+            byte[] packed = new byte[rawBytes.length / 2 + 64];
+            int packedLength = 0;
+            while (!mDeflater.finished()) {
+                if (packedLength == packed.length) {
+                    byte[] grown = new byte[packed.length * 2];
+                    System.arraycopy(packed, 0, grown, 0, packedLength);
+                    packed = grown;
+                }
+                packedLength += mDeflater.deflate(packed, packedLength,
+                        packed.length - packedLength);
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(MAGIC).putLong(entry.mFirst).putInt(entry.mCount)
+                    .putLong(entry.mMinTime).putLong(entry.mMaxTime);
+            for (int level : entry.mLevels) {
+                header.putInt(level);
+            }
+            header.putInt(rawBytes.length).putInt(packedLength);
+            header.flip();
+            final int length = HEADER_LENGTH + packedLength;
+            final long offset = reserve(length);
+            ByteBuffer[] record = { header, ByteBuffer.wrap(packed, 0, packedLength) };
+            mChannel.position(offset);
+            while (record[1].hasRemaining()) {
+                mChannel.write(record);
+            }
+            mWritePos = offset + length;
+            entry.mLength = length;
+            entry.mOffset = offset;
+            mWritten.add(entry);
+            // From now on it is read from the file
+            entry.mPending = null;
+        } catch (IOException e) {
+            // Holding the lines would let memory grow for as long as the disk fails
+            entry.mLost = true;
+            entry.mPending = null;
+            mLostLines.addAndGet(entry.mCount);
+            LLog.e("Spill failed, " + entry.mCount + " lines from " + entry.mFirst
+                    + " are lost, " + e);
+        }
+    }
+
+    /**
+     * Runs on the writer thread. Returns where the next record of the given length goes, from
+     * the start of the file if it would grow over sMaxFileBytes. The records it covers are the
+     * oldest ones, they are lost.
+     */
+    private long reserve(int length) throws IOException {
+        long offset = mWritePos;
+        Entry oldest;
+        if (offset > 0 && offset + length > sMaxFileBytes) {
+            // The records after this one are not reached again
+            while ((oldest = mWritten.peek()) != null && oldest.mOffset >= offset) {
+                oldest.mLost = true;
+                mWritten.poll();
+            }
+            mChannel.truncate(offset);
+            offset = 0;
+        }
+        while ((oldest = mWritten.peek()) != null && oldest.mOffset >= offset
+                && oldest.mOffset < offset + length) {
+            oldest.mLost = true;
+            mWritten.poll();
+        }
+        return offset;
+    }
+
+    private static synchronized File newSpillFile() throws IOException {
+        if (sSessionDir == null) {
+            File dir = new File(System.getProperty("java.io.tmpdir"),
+                    "logcatplus-" + System.currentTimeMillis());
+            if (!dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            // Deleted after its files, which are registered later
+            dir.deleteOnExit();
+            sSessionDir = dir;
+            LLog.i("Spilling evicted lines to " + dir);
+        }
+        File f = new File(sSessionDir, "device-" + (sFileCount++) + ".spill");
+        f.deleteOnExit();
+        return f;
+    }
+
+    /**
+     * Returns the lines of the spilled segment, ordered by index. Empty if they could not be
+     * written.
+     */
+    LogLine.DeviceForUI[] load(Entry entry) throws IOException {
+        Pending pending = entry.mPending;
+        if (pending != null) {
+            LogLine.DeviceForUI[] lines = new LogLine.DeviceForUI[entry.mCount];
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = pending.get(entry.mFirst, i);
+            }
+            return lines;
+        }
+        if (entry.mLost) {
+            return new LogLine.DeviceForUI[0];
+        }
+        synchronized (mCache) {
+            LogLine.DeviceForUI[] lines = mCache.get(entry);
+            if (lines != null) {
+                return lines;
+            }
+        }
+        LogLine.DeviceForUI[] lines;
+        if (entry.mArchive != null) {
+            lines = entry.mArchive.load(entry);
+        } else {
+            ByteBuffer record = ByteBuffer.allocate(entry.mLength);
+            long pos = entry.mOffset;
+            FileChannel channel = mChannel;
+            while (record.hasRemaining()) {
+                if (channel.read(record, pos + record.position()) < 0) {
+                    throw new IOException("Spill file is short at " + pos);
+                }
+            }
+            if (entry.mLost) {
+                // Overwritten while it was read
+                return new LogLine.DeviceForUI[0];
+            }
+            record.flip();
+            lines = decode(record, entry.mFirst);
+        }
+        synchronized (mCache) {
+            mCache.put(entry, lines);
+        }
+        return lines;
+    }
+
+    /** Decodes one record, the lines are numbered from first. */
+    static LogLine.DeviceForUI[] decode(ByteBuffer record, long first) throws IOException {
+        if (record.getInt() != MAGIC) {
+            throw new IOException("Not a spilled segment");
+        }
+        record.getLong();
+        final int count = record.getInt();
+        record.position(record.position() + 8 + 8 + 4 * LEVELS);
+        final int rawLength = record.getInt();
+        final int packedLength = record.getInt();
+        byte[] raw = new byte[rawLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(record.array(), record.arrayOffset() + record.position(),
+                    packedLength);
+            int n = 0;
+            while (n < rawLength && !inflater.finished()) {
+                n += inflater.inflate(raw, n, rawLength - n);
+                if (inflater.needsInput()) {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+        ByteBuffer in = ByteBuffer.wrap(raw);
+        LogLine.DeviceForUI[] lines = new LogLine.DeviceForUI[count];
+        for (int i = 0; i < count; i++) {
+            long time = in.getLong();
+            int pid = in.getInt();
+            int tid = in.getInt();
+            char level = (char) in.get();
+            int tagId = in.getInt();
+            int msgStart = in.getInt();
+            int length = in.getInt();
+            String text = new String(raw, in.position(), length, LogStore.UTF_8);
+            in.position(in.position() + length);
+            lines[i] = new LogLine.DeviceForUI(text, time, pid, tid, level, tagId, msgStart);
+            lines[i].mIndex = first + i;
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,516 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2014 Riddle Hsu
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rh.tools.logcat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Append-only store of the lines of one device. The text of the lines is kept as UTF-8 in
+ * direct buffers of {@link #CHUNK_SIZE} bytes outside of the heap, the parsed fields of the
+ * lines are kept in primitive arrays of fixed size segments. So a stored line costs about its
+ * UTF-8 length plus 40 bytes, and the collector has nothing to trace for it.
+ * <p>
+ * The writer appends to the last segment and then publishes a new {@link Snapshot}. Readers
+ * take the current snapshot and iterate it without any lock, the writer never waits for them.
+ * Trimming drops whole segments from the head in constant amortized time, and the chunks no
+ * segment refers to anymore. The dropped segments go to the {@link LogSpill} of the store.
+ */
+class LogStore {
+    final static int SEGMENT_SHIFT = 10;
+    final static int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    final static int SEGMENT_MASK = SEGMENT_SIZE - 1;
+    final static int CHUNK_SHIFT = 22;
+    final static int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    final static int CHUNK_MASK = CHUNK_SIZE - 1;
+    final static Charset UTF_8 = Charset.forName("UTF-8");
+    final static Segment[] EMPTY = new Segment[0];
+    final static ByteBuffer[] NO_CHUNK = new ByteBuffer[0];
+
+    /** The fields of SEGMENT_SIZE lines, only the writer modifies it below its count. */
+    static final class Segment {
+        final static int WORDS = SEGMENT_SIZE >> 6;
+
+        // Position of the text in the chunks of the store, a line never crosses a chunk
+        final long[] mPos = new long[SEGMENT_SIZE];
+        final int[] mLength = new int[SEGMENT_SIZE];
+        final long[] mTime = new long[SEGMENT_SIZE];
+        final int[] mPid = new int[SEGMENT_SIZE];
+        final int[] mTid = new int[SEGMENT_SIZE];
+        final byte[] mLevel = new byte[SEGMENT_SIZE];
+        final int[] mTagId = new int[SEGMENT_SIZE];
+        final int[] mMsgStart = new int[SEGMENT_SIZE];
+        // UTF-8 bytes of the lines
+        int mBytes;
+        // The oldest and newest time of the lines, 0 if none has a time
+        long mMinTime;
+        long mMaxTime;
+        // A bitmap of the lines of each level value
+        final long[][] mLevelBits = new long[LogLine.DeviceForUI.sLogLevels.length][WORDS];
+        // Set when the segment is full, null before
+        TagPostings mTags;
+
+        /**
+         * Sets in mask the lines below count which have at least the given level value, and
+         * whose tag is in include if any and not in exclude if any. The lines of a full segment
+         * are found by the postings of the tags which pass, the others are checked one by one.
+         */
+        void select(int count, int minLevel, TagDictionary.Filter include,
+                TagDictionary.Filter exclude, long[] mask, long[] scratch) {
+            final int words = (count + 63) >> 6;
+            for (int w = 0; w < WORDS; w++) {
+                mask[w] = 0;
+            }
+            for (int v = minLevel; v < mLevelBits.length; v++) {
+                long[] bits = mLevelBits[v];
+                for (int w = 0; w < words; w++) {
+                    mask[w] |= bits[w];
+                }
+            }
+            if ((count & 63) != 0) {
+                mask[words - 1] &= (1L << count) - 1;
+            }
+            if (include == null && exclude == null) {
+                return;
+            }
+            final TagPostings tags = mTags;
+            if (tags == null) {
+                for (int i = 0; i < count; i++) {
+                    if ((mask[i >> 6] & (1L << i)) != 0 && !passTag(mTagId[i], include, exclude)) {
+                        mask[i >> 6] &= ~(1L << i);
+                    }
+                }
+                return;
+            }
+            for (int w = 0; w < WORDS; w++) {
+                scratch[w] = 0;
+            }
+            for (int k = 0; k < tags.mIds.length; k++) {
+                if (passTag(tags.mIds[k], include, exclude)) {
+                    for (int p = tags.mStarts[k], end = tags.mStarts[k + 1]; p < end; p++) {
+                        int i = tags.mLines[p];
+                        scratch[i >> 6] |= 1L << i;
+                    }
+                }
+            }
+            for (int w = 0; w < words; w++) {
+                mask[w] &= scratch[w];
+            }
+        }
+
+        private static boolean passTag(int id, TagDictionary.Filter include,
+                TagDictionary.Filter exclude) {
+            return (include == null || include.matches(id))
+                    && (exclude == null || !exclude.matches(id));
+        }
+
+        // Called by the writer once the segment is full
+        void seal() {
+            int[] ids = mTagId.clone();
+            Arrays.sort(ids);
+            int distinct = 0;
+            for (int i = 0; i < ids.length; i++) {
+                if (i == 0 || ids[i] != ids[i - 1]) {
+                    ids[distinct++] = ids[i];
+                }
+            }
+            ids = Arrays.copyOf(ids, distinct);
+            int[] starts = new int[distinct + 1];
+            for (int i = 0; i < SEGMENT_SIZE; i++) {
+                starts[Arrays.binarySearch(ids, mTagId[i]) + 1]++;
+            }
+            for (int k = 0; k < distinct; k++) {
+                starts[k + 1] += starts[k];
+            }
+            int[] next = Arrays.copyOf(starts, distinct);
+            short[] lines = new short[SEGMENT_SIZE];
+            for (int i = 0; i < SEGMENT_SIZE; i++) {
+                lines[next[Arrays.binarySearch(ids, mTagId[i])]++] = (short) i;
+            }
+            mTags = new TagPostings(ids, starts, lines);
+        }
+    }
+
+    /**
+     * The lines of a full segment grouped by tag: the lines with the tag mIds[k] are
+     * mLines[mStarts[k], mStarts[k + 1]). About 2 bytes per line, so it is kept for every
+     * segment in memory.
+     */
+    static final class TagPostings {
+        final int[] mIds;
+        final int[] mStarts;
+        final short[] mLines;
+
+        TagPostings(int[] ids, int[] starts, short[] lines) {
+            mIds = ids;
+            mStarts = starts;
+            mLines = lines;
+        }
+    }
+
+    /**
+     * An immutable view of the store. The segments and chunks it refers to are never modified
+     * below {@link #end()}, so it stays consistent while the writer goes on.
+     */
+    static final class Snapshot {
+        final Segment[] mSegments;
+        // The segment of the oldest line in mSegments
+        final int mHead;
+        // Absolute index of the first line of mSegments[mHead], the oldest line
+        final long mBase;
+        final long mEnd;
+        final ByteBuffer[] mChunks;
+        // Number of the chunk mChunks[0]
+        final long mFirstChunk;
+        // UTF-8 bytes of the lines
+        final long mBytes;
+
+        Snapshot(Segment[] segments, int head, long base, long end, ByteBuffer[] chunks,
+                long firstChunk, long bytes) {
+            mSegments = segments;
+            mHead = head;
+            mBase = base;
+            mEnd = end;
+            mChunks = chunks;
+            mFirstChunk = firstChunk;
+            mBytes = bytes;
+        }
+
+        /** Absolute index of the oldest line. */
+        long first() {
+            return mBase;
+        }
+
+        /** Absolute index after the newest line. */
+        long end() {
+            return mEnd;
+        }
+
+        int size() {
+            return (int) (mEnd - mBase);
+        }
+
+        long bytes() {
+            return mBytes;
+        }
+
+        Segment segment(long index) {
+            return mSegments[mHead + (int) ((index - mBase) >>> SEGMENT_SHIFT)];
+        }
+
+        long getTime(long index) {
+            return segment(index).mTime[(int) (index & SEGMENT_MASK)];
+        }
+
+        char getLevelChar(long index) {
+            return (char) segment(index).mLevel[(int) (index & SEGMENT_MASK)];
+        }
+
+        int getTagId(long index) {
+            return segment(index).mTagId[(int) (index & SEGMENT_MASK)];
+        }
+
+        /** Returns the UTF-8 text of the line. */
+        byte[] getText(long index) {
+            final byte[] bytes = new byte[segment(index).mLength[(int) (index & SEGMENT_MASK)]];
+            copyText(index, bytes, 0);
+            return bytes;
+        }
+
+        /** Copies the UTF-8 text of the line into dst, returns its length. */
+        int copyText(long index, byte[] dst, int dstOffset) {
+            final Segment seg = segment(index);
+            final int i = (int) (index & SEGMENT_MASK);
+            final long pos = seg.mPos[i];
+            final ByteBuffer chunk = mChunks[(int) ((pos >>> CHUNK_SHIFT) - mFirstChunk)];
+            final int offset = (int) (pos & CHUNK_MASK);
+            final int length = seg.mLength[i];
+            // Absolute reads only, the writer moves the position of the chunk
+            for (int j = 0; j < length; j++) {
+                dst[dstOffset + j] = chunk.get(offset + j);
+            }
+            return length;
+        }
+
+        /** Decodes the line, the returned object is not kept by the store. */
+        LogLine.DeviceForUI get(long index) {
+            final Segment seg = segment(index);
+            final int i = (int) (index & SEGMENT_MASK);
+            LogLine.DeviceForUI line = new LogLine.DeviceForUI(new String(getText(index), UTF_8),
+                    seg.mTime[i], seg.mPid[i], seg.mTid[i], (char) seg.mLevel[i], seg.mTagId[i],
+                    seg.mMsgStart[i]);
+            line.mIndex = index;
+            return line;
+        }
+    }
+
+    // Written only by the writer, under the lock of this store. The live segments are
+    // mSegments[mHead, mHead + mCount), the slots before mHead may still be read through older
+    // snapshots so they are only dropped by copying the live ones to a new array.
+    private Segment[] mSegments = EMPTY;
+    private int mHead;
+    private int mCount;
+    private long mBase;
+    private long mEnd;
+    private ByteBuffer[] mChunks = NO_CHUNK;
+    private long mFirstChunk;
+    // Position after the text of the newest line
+    private long mWritePos;
+    private long mBytes;
+    private long mMaxTime;
+
+    private volatile Snapshot mSnapshot = new Snapshot(EMPTY, 0, 0, 0, NO_CHUNK, 0, 0);
+    final LogSpill mSpill = new LogSpill();
+    final TimeIndex mTimeIndex = new TimeIndex();
+
+    Snapshot snapshot() {
+        return mSnapshot;
+    }
+
+    /** The high-water mark: absolute index after the newest line. */
+    long end() {
+        return mSnapshot.mEnd;
+    }
+
+    int size() {
+        return mSnapshot.size();
+    }
+
+    synchronized void addAll(List<LogLine.DeviceForUI> lines) {
+        for (int i = 0, s = lines.size(); i < s; i++) {
+            int offset = (int) ((mEnd - mBase) & SEGMENT_MASK);
+            if (offset == 0) {
+                addSegment();
+            }
+            LogLine.DeviceForUI line = lines.get(i);
+            String text = line.mMsg;
+            int length = utf8Length(text);
+            if (length > CHUNK_SIZE) {
+                // Not a logcat line, 3 bytes at most per char
+                text = text.substring(0, CHUNK_SIZE / 3);
+                length = utf8Length(text);
+            }
+            if (mChunks.length == 0
+                    || (mWritePos >>> CHUNK_SHIFT) != mFirstChunk + mChunks.length - 1
+                    || (mWritePos & CHUNK_MASK) + length > CHUNK_SIZE) {
+                addChunk();
+            }
+            Segment seg = mSegments[mHead + mCount - 1];
+            seg.mPos[offset] = mWritePos;
+            seg.mLength[offset] = length;
+            seg.mTime[offset] = line.mTime;
+            seg.mPid[offset] = line.mPid;
+            seg.mTid[offset] = line.mTid;
+            seg.mLevel[offset] = line.mLevel;
+            seg.mTagId[offset] = line.mTagId;
+            seg.mMsgStart[offset] = Math.min(line.mMsgStart, text.length());
+            seg.mLevelBits[line.getLevel().value][offset >> 6] |= 1L << offset;
+            line.mIndex = mEnd;
+            mTimeIndex.add(mEnd, line.mTime);
+            putUtf8(mChunks[mChunks.length - 1], (int) (mWritePos & CHUNK_MASK), text);
+            mWritePos += length;
+            seg.mBytes += length;
+            mBytes += length;
+            if (line.mTime != 0 && (seg.mMinTime == 0 || line.mTime < seg.mMinTime)) {
+                seg.mMinTime = line.mTime;
+            }
+            if (line.mTime > seg.mMaxTime) {
+                seg.mMaxTime = line.mTime;
+                if (line.mTime > mMaxTime) {
+                    mMaxTime = line.mTime;
+                }
+            }
+            mEnd++;
+            if (offset == SEGMENT_MASK) {
+                seg.seal();
+            }
+        }
+        publish();
+    }
+
+    private void addSegment() {
+        if (mHead + mCount == mSegments.length) {
+            compact(Math.max(16, mCount * 2));
+        }
+        mSegments[mHead + mCount] = new Segment();
+        mCount++;
+    }
+
+    private void compact(int capacity) {
+        Segment[] segments = new Segment[capacity];
+        System.arraycopy(mSegments, mHead, segments, 0, mCount);
+        mSegments = segments;
+        mHead = 0;
+    }
+
+    private void addChunk() {
+        long chunk = mChunks.length > 0 ? mFirstChunk + mChunks.length
+                : (mWritePos >>> CHUNK_SHIFT) + 1;
+        if (mChunks.length == 0) {
+            mFirstChunk = chunk;
+        }
+        mWritePos = chunk << CHUNK_SHIFT;
+        ByteBuffer[] chunks = new ByteBuffer[mChunks.length + 1];
+        System.arraycopy(mChunks, 0, chunks, 0, mChunks.length);
+        chunks[mChunks.length] = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        mChunks = chunks;
+    }
+
+    /**
+     * Drops the oldest segments while the store holds more than maxBytes of text, or while their
+     * lines are all older than maxAge millis before the newest line, 0 keeps any age. The age
+     * is taken from the device time so the clock of the host does not matter. The segment being
+     * written is always kept. Returns the absolute index of the oldest line kept, it is on a
+     * segment boundary, or -1 if nothing was dropped.
+     */
+    synchronized long trimToRetain(long maxBytes, long maxAge) {
+        final long minTime = maxAge > 0 && mMaxTime > 0 ? mMaxTime - maxAge : 0;
+        long bytes = mBytes;
+        int drop = 0;
+        while (drop < mCount - 1) {
+            Segment seg = mSegments[mHead + drop];
+            // Lines without time are only limited by bytes
+            if (bytes <= maxBytes && (seg.mMaxTime == 0 || seg.mMaxTime >= minTime)) {
+                break;
+            }
+            bytes -= seg.mBytes;
+            drop++;
+        }
+        if (drop == 0) {
+            return -1;
+        }
+        mSpill.spill(mSnapshot, drop);
+        mBytes = bytes;
+        mHead += drop;
+        mCount -= drop;
+        mBase += (long) drop << SEGMENT_SHIFT;
+        if (mHead > mCount) {
+            // The dropped slots outnumber the live ones, copying is paid by the drops
+            compact(Math.max(16, mCount * 2));
+        }
+        // The chunks before the oldest kept line are no longer referred
+        long firstChunk = (mBase < mEnd ? mSegments[mHead].mPos[0] : mWritePos) >>> CHUNK_SHIFT;
+        int dropChunks = (int) Math.min(firstChunk - mFirstChunk, mChunks.length);
+        if (dropChunks > 0) {
+            ByteBuffer[] chunks = new ByteBuffer[mChunks.length - dropChunks];
+            System.arraycopy(mChunks, dropChunks, chunks, 0, chunks.length);
+            mChunks = chunks;
+            mFirstChunk += dropChunks;
+        }
+        publish();
+        return mBase;
+    }
+
+    synchronized void clear() {
+        mSegments = EMPTY;
+        mHead = mCount = 0;
+        // The lines of a segment keep starting on a multiple of its size
+        mBase = mEnd = (mEnd + SEGMENT_MASK) & ~SEGMENT_MASK;
+        mBytes = 0;
+        mMaxTime = 0;
+        mSpill.clear();
+        mTimeIndex.clear();
+        mChunks = NO_CHUNK;
+        publish();
+    }
+
+    /**
+     * Serves the lines of a saved session. They are numbered from 0 and read from its file
+     * through the spill, the store itself stays empty. Called on an empty store.
+     */
+    synchronized void attach(SessionArchive archive) throws IOException {
+        clear();
+        mBase = mEnd = (archive.end() + SEGMENT_MASK) & ~SEGMENT_MASK;
+        mSpill.attach(archive);
+        if (!archive.readTimeIndex(mTimeIndex)) {
+            for (int b = 0; b < archive.mEntries.length; b++) {
+                long first = archive.mEntries[b].mFirst;
+                long[] times = archive.readTimes(b);
+                for (int i = 0; i < times.length; i++) {
+                    mTimeIndex.add(first + i, times[i]);
+                }
+            }
+        }
+        publish();
+    }
+
+    private void publish() {
+        mSnapshot = new Snapshot(mSegments, mHead, mBase, mEnd, mChunks, mFirstChunk, mBytes);
+    }
+
+    static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // Written as '?' like String.getBytes does
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void putUtf8(ByteBuffer buf, int offset, String s) {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf.put(offset++, (byte) c);
+            } else if (c < 0x800) {
+                buf.put(offset++, (byte) (0xc0 | (c >> 6)));
+                buf.put(offset++, (byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf.put(offset++, (byte) (0xf0 | (cp >> 18)));
+                buf.put(offset++, (byte) (0x80 | ((cp >> 12) & 0x3f)));
+                buf.put(offset++, (byte) (0x80 | ((cp >> 6) & 0x3f)));
+                buf.put(offset++, (byte) (0x80 | (cp & 0x3f)));
+            } else if (Character.isSurrogate(c)) {
+                buf.put(offset++, (byte) '?');
+            } else {
+                buf.put(offset++, (byte) (0xe0 | (c >> 12)));
+                buf.put(offset++, (byte) (0x80 | ((c >> 6) & 0x3f)));
+                buf.put(offset++, (byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+}
@@ -31,30 +31,30 @@ package org.rh.tools.logcat;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Component;
-import java.awt.Dimension;
 import java.awt.Font;
-import java.awt.FontMetrics;
-import java.awt.Graphics;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.Insets;
-import java.awt.Point;
-import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.beans.PropertyChangeEvent;
-import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.TimeZone;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.swing.AbstractAction;
 import javax.swing.AbstractButton;
@@ -66,36 +66,26 @@ import javax.swing.ButtonGroup;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
 import javax.swing.JCheckBoxMenuItem;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JMenu;
 import javax.swing.JMenuItem;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JPopupMenu;
 import javax.swing.JRadioButton;
 import javax.swing.JRadioButtonMenuItem;
-import javax.swing.JScrollPane;
 import javax.swing.JSeparator;
-import javax.swing.JSlider;
+import javax.swing.JTabbedPane;
 import javax.swing.JTextField;
 import javax.swing.SwingUtilities;
 import javax.swing.border.Border;
-import javax.swing.border.CompoundBorder;
 import javax.swing.border.EmptyBorder;
-import javax.swing.border.MatteBorder;
-import javax.swing.event.CaretEvent;
-import javax.swing.event.CaretListener;
-import javax.swing.event.ChangeEvent;
-import javax.swing.event.ChangeListener;
-import javax.swing.event.DocumentEvent;
-import javax.swing.event.DocumentListener;
-import javax.swing.text.AttributeSet;
-import javax.swing.text.BadLocationException;
+import javax.swing.event.PopupMenuEvent;
+import javax.swing.event.PopupMenuListener;
 import javax.swing.text.Document;
-import javax.swing.text.Element;
 import javax.swing.text.JTextComponent;
-import javax.swing.text.StyleConstants;
-import javax.swing.text.Utilities;
 
 import org.rh.util.JDefaultContextMenuUtil;
 import org.rh.util.JFilterTextField;
@@ -117,10 +107,12 @@ public class LogcatPlus {
 
     LogProvider mLogProvider;
 
-    // TODO: set font, ddmlib, multi-device
+    // TODO: set font
     interface LoggerPane {
         int getLength();
         void append(String str);
+        /** Appends the lines, each followed by a newline, in one document operation. */
+        void appendLines(List<? extends LogLine> lines);
         void paintTextBackground(Color color, int start, int end);
         void setAutoScroll(boolean selected);
         void setText(String string);
@@ -131,9 +123,10 @@ public class LogcatPlus {
         JTextComponent asJTextComponent();
     }
 
-    LoggerPane mPane;
     Font mDefaultFont;
-    int mShowingLines;
+    final CopyOnWriteArrayList<DeviceLog> mDeviceLogs = new CopyOnWriteArrayList<>();
+    JPanel mLogContainer;
+    JTabbedPane mLogTabs;
 
     final static Color[] sBkgColors = {
         new Color(255, 217, 0), // yellow
@@ -152,35 +145,57 @@ public class LogcatPlus {
     boolean mIsEnableAndInclude;
     boolean mIsEnableOrExclude;
     boolean mIsEnableDefaultTagFilter;
+    boolean mIsBinaryMode;
+    // Keep the lines on restart and only ask the devices for the newer ones
+    boolean mIsResumeMode;
 
     LogLine.DeviceForUI.Level mCurrentLevel = LogLine.DeviceForUI.Level.V;
     LogSource mLogSrc = LogSource.system_main;
 
     enum LogSource {
-        system_main("system & main", "", true),
-        system("system", "-b system", true),
-        main("main", "-b main", true),
-        events("events", "-b events", false),
-        kernel("kernel", "", false),
-        radio("radio", "-b radio", true),
-        crash("crash", "-b crash", true),
-        system_events("system & event", "-b system -b events", true),
-        system_main_events("system & main & event", "-b system -b main -b events", true),
-        all("all", "-b all", true);
-
-        LogSource(String n, String b, boolean l) {
+        system_main("system & main", "", true, true),
+        system("system", "-b system", true, true),
+        main("main", "-b main", true, true),
+        events("events", "-b events", false, false),
+        kernel("kernel", "", false, false),
+        radio("radio", "-b radio", true, true),
+        crash("crash", "-b crash", true, true),
+        system_events("system & event", "-b system -b events", true, false),
+        system_main_events("system & main & event", "-b system -b main -b events", true, false),
+        all("all", "-b all", true, false);
+
+        LogSource(String n, String b, boolean l, boolean bin) {
             name = n;
             cmd = b;
             hasLevel = l;
+            binary = bin;
         }
 
         public final String name;
         public final String cmd;
         public final boolean hasLevel;
+        // Only text buffers, event payloads are not prio/tag/message.
+        public final boolean binary;
 
         public String getCommand() {
             return this != kernel ? (" logcat " + cmd + " -v threadtime")
-                    : " shell cat /proc/kmsg ";
+                    : " cat /proc/kmsg ";
+        }
+
+        public String getBinaryCommand() {
+            return binary ? ("logcat " + cmd + " -B") : null;
+        }
+
+        /** Whether logcat reads the buffer of the given name for this source. */
+        public boolean reads(String buffer) {
+            if (this == kernel) {
+                return false;
+            }
+            if (cmd.length() == 0) {
+                // The default buffers of logcat
+                return buffer.equals("main") || buffer.equals("system") || buffer.equals("crash");
+            }
+            return cmd.equals("-b all") || (cmd + " ").contains("-b " + buffer + " ");
         }
 
         final static HashMap<String, LogSource> srcMapping = new HashMap<>();
@@ -196,166 +211,70 @@ public class LogcatPlus {
     }
 
     JCheckBox mAutoScrollCB;
-    final ArrayList<LogLine.DeviceForUI> mLogs = new ArrayList<>(8192);
-
-    public static int CLEAN_MIN = 5000;
-    public static int CLEAN_MAX = 50000;
-    public static int CLEAN_MAX_DIFF = 2000;
-    int mLogCleanHighPos = CLEAN_MIN + 3000;
-    int mLogCleanLowPos = mLogCleanHighPos - CLEAN_MAX_DIFF;
-    int mLowLength;
-    int mLowCount;
-
-    //final static String[] TAG_BLACK_LIST = {};
-    final StringUtil.AhoCorasick mExcFilter = new StringUtil.AhoCorasick();
-    StringUtil.AhoCorasick mIncFilter;
-
-    abstract static class TaskPool<T extends TaskPool<T>.Task> {
-        private final LinkedList<T> tasks = new LinkedList<>();
-        private int limit = 256;
-
-        void preAllocate(int preSize) {
-            limit = preSize;
-            for (int i = 0; i < limit; i++) {
-                tasks.add(create());
-            }
-        }
-
-        abstract class Task implements Runnable {
-            @Override
-            public void run() {
-                runTask();
-                recycle();
-            }
-
-            abstract void runTask();
-
-            @SuppressWarnings("unchecked")
-            private void recycle() {
-                synchronized (tasks) {
-                    if (tasks.size() < limit) {
-                        tasks.addLast((T) this);
-                    }
-                }
-            }
-        }
-
-        int size() {
-            return tasks.size();
-        }
-
-        abstract T create();
-
-        T pick() {
-            synchronized (tasks) {
-                if (tasks.isEmpty() == false) {
-                    return tasks.pop();
-                }
-            }
-            return create();
-        }
-    }
-
-    public void appendText(final String text) {
-        if (!SwingUtilities.isEventDispatchThread()) {
-            SwingUtilities.invokeLater(new Runnable() {
-                @Override
-                public void run() {
-                    mPane.append(text);
-                }
-            });
-        } else {
-            mPane.append(text);
-        }
-    }
 
-    private void appendLine(LogLine line) {
-        int pos, start = -1, end = -1;
-        String hl;
-        if (mHighlightTF.getLength() > mFilterLen) {
-            hl = mHighlightTF.getText();
-            pos = line.mMsg.toLowerCase().indexOf(mHighlightTF.getCurrentLowerCaseStr());
-            if (pos > -1) {
-                start = mPane.getLength() + pos;
-                end = start + hl.length();
-            }
-        }
-        mPane.append(line.mMsg + "\n");
-        if (end > start) {
-            mPane.paintTextBackground(sBkgColors[0], start, end);
+    // Retention of each device log, by UTF-8 bytes of the stored lines and by age
+    final static int[] RETAIN_MB = { 8, 16, 32, 64, 128, 256, 512, 1024 };
+    // 0 keeps any age
+    final static int[] RETAIN_MINUTES = { 0, 5, 10, 30, 60, 240 };
+    volatile long mRetainBytes = 32L << 20;
+    volatile long mRetainAge;
+    // Lowered when the heap is short, until the retention is chosen again
+    volatile long mPressureBytes = Long.MAX_VALUE;
+    // A device keeps at least this much even when the heap is short
+    final static long PRESSURE_MIN_BYTES = 1L << 20;
+    final MemoryGuard mMemoryGuard = new MemoryGuard(this, 80);
+
+    final static int OVERLOAD_SAMPLE_RATE = 10;
+
+    /** What to do when the lines come faster than the panes can show them. */
+    enum OverloadMode {
+        BLOCK("Block reader"),
+        DROP_OLDEST("Drop oldest"),
+        SAMPLE("Show 1 in " + OVERLOAD_SAMPLE_RATE);
+
+        final String name;
+
+        OverloadMode(String n) {
+            name = n;
         }
-        mShowingLines++;
     }
 
-    private class AppendLogPool extends TaskPool<AppendLogPool.AppendLogTask> {
-        final static int BUSY_THRESHOLD = 500;
-        AtomicInteger mEventCount = new AtomicInteger(0);
-        ArrayList<LogLine> mBusyBuf = new ArrayList<>(256);
-
-        private class AppendLogTask extends TaskPool<AppendLogTask>.Task {
-            private LogLine mLine;
-
-            @Override
-            void runTask() {
-                appendLine(mLine);
-                mLine = null;
-                int remain = mEventCount.decrementAndGet();
-                if (remain == 0 && !mBusyBuf.isEmpty()) {
-                    for (int i = 0, s = mBusyBuf.size(); i < s; i++) {
-                        if (i % BUSY_THRESHOLD == 0) {
-                            checkTrimLogLocked();
-                        }
-                        appendLine(mBusyBuf.get(i));
-                    }
-                    mBusyBuf.clear();
-                }
-            }
-        }
-
-        private AppendLogPool() {
-            preAllocate(2048);
-        }
+    volatile OverloadMode mOverloadMode = OverloadMode.DROP_OLDEST;
 
-        @Override
-        AppendLogTask create() {
-            return new AppendLogTask();
-        }
-
-        private void appendLogLine(LogLine l) {
-            AppendLogTask t = (AppendLogTask) pick();
-            t.mLine = l;
-            int remain = mEventCount.get();
-            if (remain > BUSY_THRESHOLD) {
-                mBusyBuf.add(l);
-            } else {
-                mEventCount.incrementAndGet();
-                SwingUtilities.invokeLater(t);
-            }
-        }
-    }
+    // Frames per second of the log panes
+    final static int[] FRAME_RATES = { 30, 45, 60 };
+    int mFrameRate = FRAME_RATES[0];
 
-    private AppendLogPool mTextUpdater = new AppendLogPool();
+    //final static String[] TAG_BLACK_LIST = {};
+    // Resolved against the tag ids of LogLine.sTags
+    final TagDictionary.Filter mExcFilter = LogLine.sTags.newFilter(null);
+    TagDictionary.Filter mIncFilter;
+    // The conditions above and of the filter fields, replaced as a whole by updateFilter
+    volatile LineFilter mFilter = LineFilter.NONE;
 
     public LogcatPlus() {
         LookAndFeel.initDefault();
 
-        mPane = new PaneColored();
-                //new PaneQuick();
-        mDefaultFont = mPane.getFont();
+        // The first log has no device yet, it is taken by the first device that shows up
+        DeviceLog firstLog = new DeviceLog(this, null);
+        mDefaultFont = firstLog.mPane.getFont();
                 //new Font("Monospaced", Font.PLAIN, 13);
-        mPane.setFont(mDefaultFont);
+        firstLog.mPane.setFont(mDefaultFont);
+        mDeviceLogs.add(firstLog);
 
-        JScrollPane scrollPane = new JScrollPane(mPane.asJTextComponent());
-        scrollPane.setRowHeaderView(new RowHeader(mPane.asJTextComponent()));
+        mLogTabs = new JTabbedPane();
+        mLogContainer = new JPanel(new BorderLayout());
+        mLogContainer.add(firstLog.mView, BorderLayout.CENTER);
 
         JFrame f = new JFrame("Logcat Plus V0.1");
         JPanel baseP = new JPanel(new BorderLayout());
 
         Box controlPanel = new Box(BoxLayout.Y_AXIS);
         mControl = new UiControl(this, controlPanel);
+        firstLog.mPane.setAutoScroll(mAutoScrollCB.isSelected());
 
         baseP.add(controlPanel, BorderLayout.NORTH);
-        baseP.add(scrollPane, BorderLayout.CENTER);
+        baseP.add(mLogContainer, BorderLayout.CENTER);
 
         f.setContentPane(baseP);
         f.setBounds(100, 100, 840, 640);
@@ -365,6 +284,9 @@ public class LogcatPlus {
             public void windowClosing(WindowEvent e) {
                 super.windowClosing(e);
                 mLogProvider.exit();
+                for (DeviceLog log : mDeviceLogs) {
+                    log.close();
+                }
             }
         });
         mLogProvider = new ByDdmlib(this);
@@ -388,29 +310,120 @@ public class LogcatPlus {
         });
     }
 
-    public void onLog(String[] lines) {
-        for (String line : lines) {
-            onLog(line);
+    /**
+     * Returns the log of the given device, a new tab is added for a device seen for the first
+     * time.
+     */
+    DeviceLog getDeviceLog(String name) {
+        synchronized (mDeviceLogs) {
+            for (DeviceLog log : mDeviceLogs) {
+                if (name.equals(log.mName)) {
+                    return log;
+                }
+            }
+            for (DeviceLog log : mDeviceLogs) {
+                if (log.mName == null) {
+                    log.mName = name;
+                    updateLogTabs();
+                    return log;
+                }
+            }
+            DeviceLog log = newDeviceLog(name);
+            mDeviceLogs.add(log);
+            updateLogTabs();
+            return log;
         }
     }
 
-    public void onLog(String line) {
-        LogLine.DeviceForUI logline = new LogLine.DeviceForUI(line);
-        boolean isNeed = okToShow(logline);
-        synchronized (mLogs) {
-            mLogs.add(logline);
-            checkTrimLogLocked();
+    /** Opens a saved session in a log of its own, named by its file. */
+    void openSession(File file) throws IOException {
+        SessionArchive archive = SessionArchive.open(file);
+        DeviceLog log = newDeviceLog(file.getName());
+        log.open(archive);
+        mDeviceLogs.add(log);
+        updateLogTabs();
+        LLog.i("Opened " + file + ", " + archive.end() + " lines");
+    }
+
+    // A log owns Swing components, so it is built on the event thread and handed back.
+    private DeviceLog newDeviceLog(final String name) {
+        final DeviceLog[] log = new DeviceLog[1];
+        Runnable build = new Runnable() {
+            @Override
+            public void run() {
+                log[0] = new DeviceLog(LogcatPlus.this, name);
+                log[0].mPane.setAutoScroll(mAutoScrollCB.isSelected());
+            }
+        };
+        if (SwingUtilities.isEventDispatchThread()) {
+            build.run();
+        } else {
+            try {
+                SwingUtilities.invokeAndWait(build);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted building the log of " + name, e);
+            } catch (InvocationTargetException e) {
+                throw new IllegalStateException("Failed building the log of " + name,
+                        e.getCause());
+            }
         }
+        return log[0];
+    }
+
+    // The tab bar is only shown when there is more than one device.
+    private void updateLogTabs() {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                DeviceLog selected = getSelectedLog();
+                mLogContainer.removeAll();
+                mLogTabs.removeAll();
+                if (mDeviceLogs.size() == 1) {
+                    mLogContainer.add(mDeviceLogs.get(0).mView, BorderLayout.CENTER);
+                } else {
+                    for (DeviceLog log : mDeviceLogs) {
+                        mLogTabs.addTab(log.getName(), log.mView);
+                    }
+                    if (selected != null) {
+                        mLogTabs.setSelectedComponent(selected.mView);
+                    }
+                    mLogContainer.add(mLogTabs, BorderLayout.CENTER);
+                }
+                mLogContainer.revalidate();
+                mLogContainer.repaint();
+            }
+        });
+    }
 
-        if (!mIsPaused && isNeed) {
-            mTextUpdater.appendLogLine(logline);
+    DeviceLog getSelectedLog() {
+        int index = mLogTabs.getSelectedIndex();
+        if (index >= 0) {
+            for (DeviceLog log : mDeviceLogs) {
+                if (log.mView == mLogTabs.getComponentAt(index)) {
+                    return log;
+                }
+            }
         }
+        return mDeviceLogs.isEmpty() ? null : mDeviceLogs.get(0);
     }
 
     public String getCommand() {
         return mLogSrc.getCommand();
     }
 
+    public String getBinaryCommand() {
+        return mIsBinaryMode ? mLogSrc.getBinaryCommand() : null;
+    }
+
+    /**
+     * Returns the arguments to append to the commands of a capture into the given log, they
+     * resume from its last line in resume mode.
+     */
+    String beginCapture(DeviceLog log) {
+        return log.beginCapture(mLogSrc, mIsResumeMode && mLogSrc != LogSource.kernel);
+    }
+
     public LogSource getLogSource() {
         return mLogSrc;
     }
@@ -418,159 +431,279 @@ public class LogcatPlus {
     void restartLogger() {
         mLogProvider.stop();
         setInputEnable(true);
-        mLogs.clear();
-        emptyPane();
-        mPane.setFont(mDefaultFont);
-        mPane.setAutoScroll(mAutoScrollCB.isSelected());
-        System.gc();
+        // The tag conditions depend on the log source
+        updateFilter();
+        for (DeviceLog log : mDeviceLogs) {
+            // A saved session has no device to restart
+            if (!mIsResumeMode && log.mArchive == null) {
+                log.clear();
+            }
+            log.mPane.setFont(mDefaultFont);
+            log.mPane.setAutoScroll(mAutoScrollCB.isSelected());
+        }
         mLogProvider.start();
     }
 
-    void emptyPane() {
-        mPane.setText("");
-        mShowingLines = 0;
-    }
-
-    void setInputEnable(boolean enable) {
-        mIncludeTF.setEnabled(enable);
-        mExcludeTF.setEnabled(enable);
-        mHighlightTF.setEnabled(enable);
+    void setFrameRate(int frameRate) {
+        mFrameRate = frameRate;
+        for (DeviceLog log : mDeviceLogs) {
+            log.setFrameRate(frameRate);
+        }
     }
 
-    void checkTrimLogLocked() {
-        int size = mLogs.size();
-        if (size < mLogCleanLowPos) {
-            return;
-        }
-        if (size < mLogCleanHighPos) {
-            if (mLowLength == 0) {
-                mLowCount = size;
-                mLowLength = mPane.getLength();
-            }
-            return;
+    /** Returns the overload counters of all the devices, empty if nothing was lost. */
+    String getOverloadStatus() {
+        long[] counts = new long[3];
+        for (DeviceLog log : mDeviceLogs) {
+            log.addOverloadCounts(counts);
         }
-        if (mShowingLines * 2 < size) {
-            return;
+        if (counts[0] == 0 && counts[1] == 0 && counts[2] == 0) {
+            return "";
         }
-        //LLog.i("s:" + mShowingLines + " p:" + mPane.getLength() + " ls:" + size);
+        return "dropped " + counts[0] + "  sampled out " + counts[1] + "  delayed " + counts[2];
+    }
 
-        final int cleanPos = mLowLength;
-        SwingUtilities.invokeLater(new Runnable() {
+    long getRetainBytes() {
+        return Math.min(mRetainBytes, mPressureBytes);
+    }
+
+    void setRetainBytes(long bytes) {
+        mRetainBytes = bytes;
+        applyRetention(true);
+    }
+
+    void setRetainAge(long age) {
+        mRetainAge = age;
+        applyRetention(false);
+    }
+
+    // A quiet device only trims on its next line, so the chosen retention is applied to all the
+    // logs at once, on the thread of relieveMemory so neither loses the other's limit.
+    private void applyRetention(final boolean resetPressure) {
+        sRerfeshEs.execute(new Runnable() {
             @Override
             public void run() {
-                try {
-                    //LLog.i("Trim " + cleanPos);
-                    mPane.getDocument().remove(0, cleanPos);
-                } catch (javax.swing.text.BadLocationException ex) {
-                    LLog.e("checkTrimLog BadLocation " + cleanPos);
+                if (resetPressure) {
+                    mPressureBytes = Long.MAX_VALUE;
+                }
+                for (DeviceLog log : mDeviceLogs) {
+                    log.checkRetention();
                 }
             }
         });
-
-        mLogs.subList(0, mLowCount).clear();
-        mLowLength = 0;
-        System.gc();
     }
 
-    static ExecutorService sRerfeshEs = Executors.newSingleThreadExecutor();
-    Runnable mRefresh = new Runnable() {
-        @Override
-        public void run() {
-            emptyPane();
-            synchronized (mLogs) {
-                for (int i = 0, s = mLogs.size(); i < s; i++) {
-                    LogLine.DeviceForUI line = mLogs.get(i);
-                    if (okToShow(line)) {
-                        appendLine(line);
-                        if (i % 200 == 0) {
-                            checkTrimLogLocked();
-                        }
-                    }
+    /**
+     * Called when the heap stays short after collections. Each call halves what a device may
+     * keep, the oldest segments of all the devices are dropped at once.
+     */
+    void relieveMemory(String reason) {
+        long kept = 0;
+        for (DeviceLog log : mDeviceLogs) {
+            kept = Math.max(kept, log.mLogs.snapshot().bytes());
+        }
+        long limit = Math.max(PRESSURE_MIN_BYTES, Math.min(getRetainBytes(), kept) / 2);
+        mPressureBytes = limit;
+        LLog.i("Memory short: " + reason + ", keeping at most " + (limit >> 10)
+                + " KB per device");
+        for (DeviceLog log : mDeviceLogs) {
+            log.checkRetention();
+            log.dropKeptMatches();
+        }
+    }
+
+    /**
+     * Called every second. Relieves the memory when the direct buffers of the text are short,
+     * no notification tells it. Else while the retention is lowered by
+     * {@link #relieveMemory(String)} and the memory has room for it again, doubles what a device
+     * may keep, up to the chosen retention. Runs on the same thread as relieveMemory so neither
+     * loses the other's limit.
+     */
+    void restoreMemory() {
+        sRerfeshEs.execute(new Runnable() {
+            @Override
+            public void run() {
+                String reason = mMemoryGuard.checkDirect();
+                if (reason != null) {
+                    relieveMemory(reason);
+                    return;
+                }
+                long limit = mPressureBytes;
+                if (limit >= mRetainBytes) {
+                    return;
                 }
+                // Each device may take that much more
+                long growth = Math.min(limit, mRetainBytes - limit)
+                        * Math.max(1, mDeviceLogs.size());
+                if (mMemoryGuard.getRoom() <= growth) {
+                    return;
+                }
+                mPressureBytes = limit * 2 >= mRetainBytes ? Long.MAX_VALUE : limit * 2;
+                LLog.i("Memory back, keeping at most " + (getRetainBytes() >> 10)
+                        + " KB per device");
+            }
+        });
+    }
+
+    /**
+     * Returns the lines, bytes and oldest time kept by all the devices. The time is shown in the
+     * zone of the device which has it, as its lines are.
+     */
+    String getRetentionStatus() {
+        long[] retained = new long[4];
+        TimeZone zone = TimeZone.getDefault();
+        for (DeviceLog log : mDeviceLogs) {
+            long oldest = retained[2];
+            log.addRetained(retained);
+            if (retained[2] != oldest) {
+                zone = log.mTimeZone;
             }
         }
-    };
+        String status = "Kept " + retained[0] + " lines, "
+                + String.format("%.1f MB", retained[1] / (1024.0 * 1024));
+        if (mPressureBytes < mRetainBytes) {
+            status += " (limited by memory)";
+        }
+        if (retained[2] > 0) {
+            SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss");
+            format.setTimeZone(zone);
+            status += ", since " + format.format(new Date(retained[2]));
+        }
+        if (retained[3] > 0) {
+            status += ", " + retained[3] + " older lines not spilled";
+        }
+        for (DeviceLog log : mDeviceLogs) {
+            if (log.mArchive != null && log.mPartial) {
+                status += ", older lines of " + log.getName() + " not shown";
+            }
+        }
+        return status;
+    }
 
-    void refreshContentByCondition() {
-        sRerfeshEs.execute(mRefresh);
+    /**
+     * Parses "MM-dd HH:mm:ss[.SSS]" or "HH:mm:ss[.SSS]" on the day of the newest line of the
+     * log, into the millis of {@link LogLine.DeviceLine#getTime()}. Returns -1 if malformed.
+     */
+    static long parseTime(String text, DeviceLog log) {
+        LogStore.Snapshot logs = log.mLogs.snapshot();
+        long newest = logs.size() > 0 ? logs.getTime(logs.end() - 1) : 0;
+        if (newest <= 0) {
+            newest = System.currentTimeMillis();
+        }
+        if (text.length() <= 12) {
+            SimpleDateFormat day = new SimpleDateFormat("MM-dd ");
+            day.setTimeZone(log.mTimeZone);
+            text = day.format(new Date(newest)) + text;
+        }
+        if (text.length() == LogLine.DeviceLine.TIME_LENGTH - 4) {
+            text += ".000";
+        }
+        if (text.length() != LogLine.DeviceLine.TIME_LENGTH) {
+            return -1;
+        }
+        return new LogLine.DeviceClock(log.mTimeZone, newest).parseTime(text);
     }
 
-    boolean okToShow(LogLine.DeviceForUI line) {
-        if (line.mLevel.value < mCurrentLevel.value) {
-            return false;
+    void clearLogs() {
+        for (DeviceLog log : mDeviceLogs) {
+            log.clear();
         }
+    }
 
-        if (mLogSrc.hasLevel) {
-            if (mIsEnableDefaultTagFilter && mExcFilter.contains(line.getTag())) {
-                return false;
-            }
-            if (mIncFilter != null && !mIncFilter.contains(line.getTag())) {
-                return false;
-            }
+    void setAutoScroll(boolean autoScroll) {
+        for (DeviceLog log : mDeviceLogs) {
+            log.mPane.setAutoScroll(autoScroll);
         }
+    }
 
-        String ex = mExcludeTF.getCurrentLowerCaseStr();
-        String in = mIncludeTF.getCurrentLowerCaseStr();
-        boolean normalExclude = ex.length() > mFilterLen && !mExcludeTF.isRegExpMode();
-        boolean normalInclude = in.length() > mFilterLen && !mIncludeTF.isRegExpMode();
-        String msg = (normalExclude || normalInclude) ? line.mMsg.toLowerCase() : "";
-        if (normalExclude) {
-            if (mIsEnableOrExclude) {
-                for (String s : mExcludeTF.getCurrentSepBySpace()) {
-                    if (msg.contains(s)) {
-                        return false;
-                    }
-                }
-            } else if (msg.contains(ex)) {
-                return false;
-            }
-        } else if (mExcludeTF.isRegExpMode()) {
-            return !mExcludeTF.match(line.mMsg);
-        }
-        if (normalInclude) {
-            if (mIsEnableAndInclude) {
-                for (String s : mIncludeTF.getCurrentSepBySpace()) {
-                    if (msg.contains(s) == false) {
-                        return false;
-                    }
-                }
-            } else if (mIsEnableOrInclude) {
-                for (String s : mIncludeTF.getCurrentSepBySpace()) {
-                    if (msg.contains(s) == true) {
-                        return true;
-                    }
+    void setInputEnable(boolean enable) {
+        mIncludeTF.setEnabled(enable);
+        mExcludeTF.setEnabled(enable);
+        mHighlightTF.setEnabled(enable);
+    }
+
+    static ExecutorService sRerfeshEs = Executors.newSingleThreadExecutor();
+    // Filters the segments of a refresh in parallel, its threads are daemons
+    static final ForkJoinPool sFilterPool = new ForkJoinPool();
+
+    void refreshContentByCondition() {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    refreshContentByCondition();
                 }
-                return false;
-            } else if (msg.contains(in) == false) {
-                return false;
-            }
-        } else if (mIncludeTF.isRegExpMode()) {
-            return mIncludeTF.match(line.mMsg);
+            });
+            return;
+        }
+        updateFilter();
+        for (DeviceLog log : mDeviceLogs) {
+            log.refresh();
         }
-
-        return true;
     }
 
-    int mPausedIndex;
+    /**
+     * Compiles the filter conditions and publishes them to the reader and the refresh. Runs on
+     * the EDT, which owns the fields it reads.
+     */
+    void updateFilter() {
+        TagDictionary.Filter includeTags = null;
+        TagDictionary.Filter excludeTags = null;
+        if (mLogSrc.hasLevel) {
+            includeTags = mIncFilter;
+            excludeTags = mIsEnableDefaultTagFilter ? mExcFilter : null;
+        }
+        String[] exclude = termsOf(mExcludeTF, mIsEnableOrExclude);
+        String[] include = termsOf(mIncludeTF, mIsEnableAndInclude || mIsEnableOrInclude);
+        mFilter = new LineFilter(mCurrentLevel.value, includeTags, excludeTags,
+                mIncludeTF.isRegExpMode() ? LineFilter.TEXT_REGEX
+                        : include == null ? LineFilter.TEXT_NONE
+                        : mIsEnableOrInclude ? LineFilter.TEXT_ANY : LineFilter.TEXT_ALL,
+                include, mIncludeTF.getRegExp(),
+                mExcludeTF.isRegExpMode() ? LineFilter.TEXT_REGEX
+                        : exclude == null ? LineFilter.TEXT_NONE : LineFilter.TEXT_ANY,
+                exclude, mExcludeTF.getRegExp());
+    }
+
+    // The terms of a plain text field, split by space if split, or null if the field does not
+    // filter. The case is ignored by the matchers of LineFilter.
+    private String[] termsOf(JFilterTextField tf, boolean split) {
+        String text = tf.getText();
+        if (tf.isRegExpMode() || text.length() <= mFilterLen) {
+            return null;
+        }
+        if (!split) {
+            return new String[] { text };
+        }
+        ArrayList<String> terms = new ArrayList<>();
+        for (String s : text.split(" ")) {
+            // An empty term would match every line
+            if (s.length() > 0) {
+                terms.add(s);
+            }
+        }
+        return terms.isEmpty() ? null : terms.toArray(new String[terms.size()]);
+    }
 
     public void setPause(boolean pause) {
         mIsPaused = pause;
-        if (pause) {
-            mPausedIndex = mLogs.size();
-        } else {
-            synchronized (mLogs) {
-                for (int i = mPausedIndex, s = mLogs.size(); i < s; i++) {
-                    LogLine.DeviceForUI line = mLogs.get(i);
-                    if (okToShow(line)) {
-                        appendLine(line);
-                    }
-                }
-            }
+        for (DeviceLog log : mDeviceLogs) {
+            log.setPause(pause);
         }
     }
 
     public void setText(String text) {
-        mPane.setText("No device connected");
+        DeviceLog log = getSelectedLog();
+        if (log != null) {
+            log.setText(text);
+        }
+    }
+
+    public void appendText(String text) {
+        DeviceLog log = getSelectedLog();
+        if (log != null) {
+            log.appendText(text);
+        }
     }
 }
 
@@ -678,10 +811,9 @@ class UiControl {
         mL.mAutoScrollCB.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                mL.mPane.setAutoScroll(mL.mAutoScrollCB.isSelected());
+                mL.setAutoScroll(mL.mAutoScrollCB.isSelected());
             }
         });
-        mL.mPane.setAutoScroll(mL.mAutoScrollCB.isSelected());
         logLevelPanel.add(mL.mAutoScrollCB);
         control1.add(logLevelPanel);
 
@@ -700,9 +832,7 @@ class UiControl {
         clear.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                mL.emptyPane();
-                mL.mLogs.clear();
-                System.gc();
+                mL.clearLogs();
             }
         });
         control1.add(clear);
@@ -724,6 +854,20 @@ class UiControl {
         });
         control1.add(pause);
 
+        // ---------------------------------------------------
+        final JLabel overloadLabel = new JLabel();
+        overloadLabel.setToolTipText("Lines not shown or held back because the device logs"
+                + " faster than the view, see \"On overload\" in the menu");
+        control1.add(Box.createHorizontalStrut(10));
+        control1.add(overloadLabel);
+        new javax.swing.Timer(1000, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                overloadLabel.setText(mL.getOverloadStatus());
+                mL.restoreMemory();
+            }
+        }).start();
+
         return control1;
     }
 
@@ -752,7 +896,7 @@ class UiControl {
 //                if (tagFilterFrame.isFilterEnable()) {
 //                    String[] selTags = tagFilterFrame.getSelectedTags();
 //                    if (selTags != null && selTags.length > 0) {
-//                        mL.mIncFilter = new StringUtil.AhoCorasick(selTags);
+//                        mL.mIncFilter = LogLine.sTags.newFilter(selTags);
 //                    }
 //                } else {
 //                    mL.mIncFilter = null;
@@ -880,17 +1024,191 @@ class UiControl {
         });
         mMenu.add(mitem);
 
+        // ---------------------------------------------------
+        mitem = new JCheckBoxMenuItem("Binary logcat (-B)");
+        mitem.setToolTipText("Decode binary entries, falls back to text if the device rejects it");
+        mitem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                mL.mIsBinaryMode = ((JCheckBoxMenuItem) e.getSource()).isSelected();
+                mL.restartLogger();
+            }
+        });
+        mMenu.add(mitem);
+
+        // ---------------------------------------------------
+        JMenu overloadMenu = new JMenu("On overload");
+        ButtonGroup overloadBg = new ButtonGroup();
+        for (final LogcatPlus.OverloadMode mode : LogcatPlus.OverloadMode.values()) {
+            mitem = new JRadioButtonMenuItem(mode.name);
+            mitem.setSelected(mode == mL.mOverloadMode);
+            mitem.addActionListener(new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    mL.mOverloadMode = mode;
+                }
+            });
+            overloadBg.add(mitem);
+            overloadMenu.add(mitem);
+        }
+        mMenu.add(overloadMenu);
+
+        // ---------------------------------------------------
+        JMenu frameRateMenu = new JMenu("Refresh rate");
+        ButtonGroup frameRateBg = new ButtonGroup();
+        for (final int rate : LogcatPlus.FRAME_RATES) {
+            mitem = new JRadioButtonMenuItem(rate + " fps");
+            mitem.setSelected(rate == mL.mFrameRate);
+            mitem.addActionListener(new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    mL.setFrameRate(rate);
+                }
+            });
+            frameRateBg.add(mitem);
+            frameRateMenu.add(mitem);
+        }
+        mMenu.add(frameRateMenu);
+
+        // ---------------------------------------------------
+        mitem = new JCheckBoxMenuItem("Resume on restart");
+        mitem.setToolTipText("Keep the lines and only read the newer ones on restart, source"
+                + " switch or reconnect (logcat -T)");
+        mitem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                mL.mIsResumeMode = ((JCheckBoxMenuItem) e.getSource()).isSelected();
+            }
+        });
+        mMenu.add(mitem);
+
         // ---------------------------------------------------
         mitem = new JCheckBoxMenuItem("Copy to clipboard");
         mitem.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                StringUtil.copyToClipboard(mL.mPane.getText());
+                DeviceLog log = mL.getSelectedLog();
+                if (log != null) {
+                    StringUtil.copyToClipboard(log.mPane.getText());
+                }
                 ((JCheckBoxMenuItem) e.getSource()).setSelected(false);
             }
         });
         mMenu.add(mitem);
 
+        // ---------------------------------------------------
+        mitem = new JMenuItem("Go to time...");
+        mitem.setToolTipText("Select the first line at or after a device time, MM-dd HH:mm:ss.SSS"
+                + " or HH:mm:ss on the day of the newest line");
+        mitem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                DeviceLog log = mL.getSelectedLog();
+                if (log == null) {
+                    return;
+                }
+                String text = JOptionPane.showInputDialog(mMoreFuncBtn, "Device time:",
+                        "Go to time", JOptionPane.QUESTION_MESSAGE);
+                if (text == null) {
+                    return;
+                }
+                long time = LogcatPlus.parseTime(text.trim(), log);
+                if (time < 0) {
+                    JOptionPane.showMessageDialog(mMoreFuncBtn, "Unknown time: " + text);
+                    return;
+                }
+                log.goToTime(time);
+            }
+        });
+        mMenu.add(mitem);
+
+        // ---------------------------------------------------
+        mitem = new JMenuItem("Export history...");
+        mitem.setToolTipText("Save every line of the device, also those spilled to disk");
+        mitem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                final DeviceLog log = mL.getSelectedLog();
+                if (log == null) {
+                    return;
+                }
+                JFileChooser chooser = new JFileChooser();
+                chooser.setSelectedFile(new File(log.getName().replace(':', '_') + ".txt"));
+                if (chooser.showSaveDialog(mMoreFuncBtn) != JFileChooser.APPROVE_OPTION) {
+                    return;
+                }
+                final File file = chooser.getSelectedFile();
+                LogcatPlus.sRerfeshEs.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            log.export(file);
+                            LLog.i("Exported " + log.getName() + " to " + file);
+                        } catch (IOException ex) {
+                            LLog.ex(ex);
+                        }
+                    }
+                });
+            }
+        });
+        mMenu.add(mitem);
+
+        // ---------------------------------------------------
+        mitem = new JMenuItem("Save session...");
+        mitem.setToolTipText("Save every line of the device to a file which opens fast");
+        mitem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                final DeviceLog log = mL.getSelectedLog();
+                if (log == null) {
+                    return;
+                }
+                JFileChooser chooser = new JFileChooser();
+                chooser.setSelectedFile(new File(log.getName().replace(':', '_') + ".lcps"));
+                if (chooser.showSaveDialog(mMoreFuncBtn) != JFileChooser.APPROVE_OPTION) {
+                    return;
+                }
+                final File file = chooser.getSelectedFile();
+                LogcatPlus.sRerfeshEs.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            log.save(file);
+                            LLog.i("Saved " + log.getName() + " to " + file);
+                        } catch (IOException ex) {
+                            LLog.ex(ex);
+                        }
+                    }
+                });
+            }
+        });
+        mMenu.add(mitem);
+
+        // ---------------------------------------------------
+        mitem = new JMenuItem("Open session...");
+        mitem.setToolTipText("Show a saved session in a tab of its own");
+        mitem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                JFileChooser chooser = new JFileChooser();
+                if (chooser.showOpenDialog(mMoreFuncBtn) != JFileChooser.APPROVE_OPTION) {
+                    return;
+                }
+                final File file = chooser.getSelectedFile();
+                LogcatPlus.sRerfeshEs.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            mL.openSession(file);
+                        } catch (IOException ex) {
+                            LLog.ex(ex);
+                        }
+                    }
+                });
+            }
+        });
+        mMenu.add(mitem);
+
         /*
         // ---------------------------------------------------
         mitem = new JCheckBoxMenuItem("Default TAG filter");
@@ -919,27 +1237,103 @@ class UiControl {
         });
         mMenu.add(mitem);*/
 
+        // ---------------------------------------------------
+        mMenu.add(new JSeparator());
+        JMenu retainBytesMenu = new JMenu("Keep up to");
+        ButtonGroup retainBytesBg = new ButtonGroup();
+        for (final int mb : LogcatPlus.RETAIN_MB) {
+            mitem = new JRadioButtonMenuItem(mb + " MB per device");
+            mitem.setSelected(((long) mb << 20) == mL.mRetainBytes);
+            mitem.addActionListener(new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    mL.setRetainBytes((long) mb << 20);
+                }
+            });
+            retainBytesBg.add(mitem);
+            retainBytesMenu.add(mitem);
+        }
+        mMenu.add(retainBytesMenu);
+
+        JMenu retainAgeMenu = new JMenu("Keep for");
+        ButtonGroup retainAgeBg = new ButtonGroup();
+        for (final int minutes : LogcatPlus.RETAIN_MINUTES) {
+            mitem = new JRadioButtonMenuItem(minutes == 0 ? "Any age"
+                    : minutes < 60 ? "Last " + minutes + " min" : "Last " + minutes / 60 + " h");
+            mitem.setSelected(minutes * 60000L == mL.mRetainAge);
+            mitem.addActionListener(new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    mL.setRetainAge(minutes * 60000L);
+                }
+            });
+            retainAgeBg.add(mitem);
+            retainAgeMenu.add(mitem);
+        }
+        mMenu.add(retainAgeMenu);
+
+        JMenu spillMenu = new JMenu("Spill older lines up to");
+        ButtonGroup spillBg = new ButtonGroup();
+        for (final int mb : LogSpill.MAX_FILE_MB) {
+            mitem = new JRadioButtonMenuItem(
+                    (mb < 1024 ? mb + " MB" : mb / 1024 + " GB") + " per device");
+            mitem.setSelected(((long) mb << 20) == LogSpill.sMaxFileBytes);
+            mitem.addActionListener(new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    LogSpill.sMaxFileBytes = (long) mb << 20;
+                }
+            });
+            spillBg.add(mitem);
+            spillMenu.add(mitem);
+        }
+        mMenu.add(spillMenu);
+
+        JMenu heapMenu = new JMenu("Drop oldest when heap over");
+        ButtonGroup heapBg = new ButtonGroup();
+        for (final int percent : MemoryGuard.PERCENTS) {
+            mitem = new JRadioButtonMenuItem(percent + "%");
+            mitem.setSelected(percent == mL.mMemoryGuard.getPercent());
+            mitem.addActionListener(new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    mL.mMemoryGuard.setPercent(percent);
+                }
+            });
+            heapBg.add(mitem);
+            heapMenu.add(mitem);
+        }
+        mMenu.add(heapMenu);
+
         Box b = Box.createVerticalBox();
-        final JLabel ctlLabel = new JLabel("Clean log threshold=" + mL.mLogCleanHighPos);
-        b.add(ctlLabel);
-        b.setBorder(BorderFactory.createEmptyBorder(0, 10, 0, 10));
-        b.setPreferredSize(new Dimension(0, 50));
-        final JSlider cltSlider = new JSlider(JSlider.HORIZONTAL,
-                LogcatPlus.CLEAN_MIN, LogcatPlus.CLEAN_MAX, mL.mLogCleanHighPos);
-        cltSlider.addChangeListener(new ChangeListener() {
+        final JLabel retainedLabel = new JLabel(mL.getRetentionStatus());
+        b.add(retainedLabel);
+        b.setBorder(BorderFactory.createEmptyBorder(4, 10, 4, 10));
+        mMenu.add(b);
+        // Live while the menu is shown
+        final javax.swing.Timer retainedTimer = new javax.swing.Timer(1000, new ActionListener() {
             @Override
-            public void stateChanged(ChangeEvent e) {
-                mL.mLogCleanHighPos = cltSlider.getValue();
-                mL.mLogCleanLowPos = mL.mLogCleanHighPos - LogcatPlus.CLEAN_MAX_DIFF;
-                ctlLabel.setText("Clean log threshold=" + mL.mLogCleanHighPos);
+            public void actionPerformed(ActionEvent e) {
+                retainedLabel.setText(mL.getRetentionStatus());
+            }
+        });
+        mMenu.addPopupMenuListener(new PopupMenuListener() {
+            @Override
+            public void popupMenuWillBecomeVisible(PopupMenuEvent e) {
+                retainedLabel.setText(mL.getRetentionStatus());
+                retainedTimer.start();
+            }
+
+            @Override
+            public void popupMenuWillBecomeInvisible(PopupMenuEvent e) {
+                retainedTimer.stop();
+            }
+
+            @Override
+            public void popupMenuCanceled(PopupMenuEvent e) {
+                retainedTimer.stop();
             }
         });
-        cltSlider.setMajorTickSpacing(10000);
-        cltSlider.setMinorTickSpacing(5000);
-        cltSlider.setPaintTicks(true);
-        b.add(cltSlider);
-        mMenu.add(new JSeparator());
-        mMenu.add(b);
 
         mMoreFuncBtn = new JButton("Menu");
         mMoreFuncBtn.addActionListener(new ActionListener() {
@@ -964,384 +1358,6 @@ class UiControl {
     }
 }
 
-class RowHeader extends JPanel implements CaretListener, DocumentListener, PropertyChangeListener {
-    private final static Border OUTER = new MatteBorder(0, 0, 0, 2, Color.GRAY);
-    private final static int NUM_HEIGHT = Integer.MAX_VALUE - 1000000;
-
-    private JTextComponent mComponent;
-    private Document mDoc;
-    private Element mRoot;
-    private boolean mUpdateFont;
-    private boolean mForceUpdateWidth;
-    private int mMinimumDisplayDigits = 3;
-
-    private int mLastDigits;
-    private int mLastHeight;
-    private int mLastLine;
-    private Point mTmpPoint = new Point(0, 0);
-
-    private HashMap<String, FontMetrics> mFonts;
-    private Runnable mCheckHeight;
-
-    public RowHeader(JTextComponent c) {
-        mComponent = c;
-        mDoc = c.getDocument();
-        mRoot = mDoc.getDefaultRootElement();
-        mDoc.addDocumentListener(this);
-        setFont(c.getFont());
-        setBorderGap(5);
-        c.addCaretListener(this);
-        c.addPropertyChangeListener("font", this);
-        mCheckHeight = new Runnable() {
-            @Override
-            public void run() {
-                int preferredHeight = mComponent.getPreferredSize().height;
-                if (mLastHeight != preferredHeight) {
-                    setPreferredWidth();
-                    repaint();
-                    mLastHeight = preferredHeight;
-                }
-            }
-        };
-    }
-
-    public boolean getUpdateFont() {
-        return mUpdateFont;
-    }
-
-    public void setUpdateFont(boolean updateFont) {
-        mUpdateFont = updateFont;
-    }
-
-    public void updateFont(Font font) {
-        setFont(font);
-        mForceUpdateWidth = true;
-        setPreferredWidth();
-        mForceUpdateWidth = false;
-    }
-
-    public void setBorderGap(int borderGap) {
-        Border inner = new EmptyBorder(0, borderGap, 0, borderGap);
-        setBorder(new CompoundBorder(OUTER, inner));
-        mLastDigits = 0;
-        setPreferredWidth();
-    }
-
-    private void setPreferredWidth() {
-        int lines = mRoot.getElementCount();
-        int digits = Math.max(String.valueOf(lines).length(), mMinimumDisplayDigits);
-
-        if (mLastDigits != digits || mForceUpdateWidth) {
-            mLastDigits = digits;
-            FontMetrics fontMetrics = getFontMetrics(getFont());
-            int width = fontMetrics.charWidth('0') * digits;
-            Insets insets = getInsets();
-            int preferredWidth = insets.left + insets.right + width;
-
-            Dimension d = getPreferredSize();
-            d.setSize(preferredWidth, NUM_HEIGHT);
-
-            setPreferredSize(d);
-            setSize(d);
-        }
-    }
-
-    @Override
-    public void paintComponent(Graphics g) {
-        super.paintComponent(g);
-
-        FontMetrics fontMetrics = mComponent.getFontMetrics(mComponent.getFont());
-        //int fontHeight = fontMetrics.getHeight();
-        Insets insets = getInsets();
-        int availableWidth = getSize().width - insets.left - insets.right;
-
-        Rectangle clip = g.getClipBounds();
-        mTmpPoint.setLocation(0, clip.y);
-        int rowStartOffset = mComponent.viewToModel(mTmpPoint);
-        mTmpPoint.setLocation(0, clip.y + clip.height);
-        int endOffset = mComponent.viewToModel(mTmpPoint);
-
-        while (rowStartOffset <= endOffset) {
-            try {
-                int index = mRoot.getElementIndex(rowStartOffset);
-                Element line = mRoot.getElement(index);
-
-                String lineNumber = line.getStartOffset() == rowStartOffset ?
-                        String.valueOf(index + 1) : "";
-                int stringWidth = fontMetrics.stringWidth(lineNumber);
-                if (stringWidth > 0) {
-                    int x = (int) ((availableWidth - stringWidth) * 1) + insets.left;
-                    int y = getOffsetY(rowStartOffset, fontMetrics);
-
-                    int len = line.getEndOffset() - line.getStartOffset();
-                    String log = mDoc.getText(line.getStartOffset(), len);
-                    if (log.length() > 2) {
-                        g.setColor(LogLine.DeviceForUI.getLevelByString(log).color);
-                        g.drawString(lineNumber, x, y);
-                        //g.drawRect(x - 2, y - fontHeight + 4, stringWidth + 2, fontHeight - 2);
-                        g.drawLine(x, y + 2, stringWidth + 4, y + 2);
-                    }
-                }
-
-                rowStartOffset = Utilities.getRowEnd(mComponent, rowStartOffset) + 1;
-            } catch (BadLocationException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-
-    private int getOffsetY(int rowStartOffset, FontMetrics fontMetrics) throws BadLocationException {
-        Rectangle r = mComponent.modelToView(rowStartOffset);
-        int lineHeight = fontMetrics.getHeight();
-        int y = r.y + r.height;
-        int descent = 0;
-
-        if (r.height == lineHeight) {
-            descent = fontMetrics.getDescent();
-        } else {
-            if (mFonts == null) {
-                mFonts = new HashMap<>();
-            }
-
-            int index = mRoot.getElementIndex(rowStartOffset);
-            Element line = mRoot.getElement(index);
-
-            for (int i = 0; i < line.getElementCount(); i++) {
-                Element child = line.getElement(i);
-                AttributeSet as = child.getAttributes();
-                String fontFamily = (String) as.getAttribute(StyleConstants.FontFamily);
-                Integer fontSize = (Integer) as.getAttribute(StyleConstants.FontSize);
-                String key = fontFamily + fontSize;
-                FontMetrics fm = mFonts.get(key);
-                if (fm == null) {
-                    Font font = new Font(fontFamily, Font.PLAIN, fontSize);
-                    fm = mComponent.getFontMetrics(font);
-                    mFonts.put(key, fm);
-                }
-                descent = Math.max(descent, fm.getDescent());
-            }
-        }
-
-        return y - descent;
-    }
-
-    @Override
-    public void caretUpdate(CaretEvent e) {
-        int caretPosition = mComponent.getCaretPosition();
-        int currentLine = mRoot.getElementIndex(caretPosition);
-        if (mLastLine != currentLine) {
-            repaint();
-            mLastLine = currentLine;
-        }
-    }
-
-    @Override
-    public void changedUpdate(DocumentEvent e) {
-        documentChanged();
-    }
-
-    @Override
-    public void insertUpdate(DocumentEvent e) {
-        documentChanged();
-    }
-
-    @Override
-    public void removeUpdate(DocumentEvent e) {
-        documentChanged();
-    }
-
-    private void documentChanged() {
-        SwingUtilities.invokeLater(mCheckHeight);
-    }
-
-    @Override
-    public void propertyChange(PropertyChangeEvent evt) {
-        if (evt.getNewValue() instanceof Font) {
-            if (mUpdateFont) {
-                Font newFont = (Font) evt.getNewValue();
-                setFont(newFont);
-                mLastDigits = 0;
-                setPreferredWidth();
-            } else {
-                repaint();
-            }
-        }
-    }
-}
-
-class LogLine {
-    public static final int FORMAT_LOGCAT_LEVEL_POS = 31;
-    final static Color sMyGreen = new Color(0, 150, 0);
-    final static Color sMyOrange = new Color(230, 140, 0);
-    final public String mMsg;
-    private String mTmpTimeStr;
-
-    public Color getColor() {
-        return Color.BLACK;
-    }
-
-    public LogLine(String s) {
-        mMsg = s == null ? "" : s;
-    }
-
-    public String getContent() {
-        return mMsg;
-    }
-
-    public String getTag() {
-        return "";
-    }
-
-    public String getTimeString() {
-        return "";
-    }
-
-    public String getTimeStr() {
-        if (mTmpTimeStr == null) {
-            mTmpTimeStr = getTimeString();
-        }
-        return mTmpTimeStr;
-    }
-
-    public String getPidStr() {
-        return "";
-    }
-
-    public String getTidStr() {
-        return "";
-    }
-
-    @Override
-    public String toString() {
-        return mMsg;
-    }
-
-    public static class DefaultLine extends LogLine {
-        public DefaultLine(String line) {
-            super(line);
-        }
-
-        @Override
-        public String getTimeString() {
-            return mMsg.substring(0, 18);
-        }
-
-        public String getPidStr() {
-            return mMsg.substring(19, 24);
-        }
-
-        public String getTidStr() {
-            return mMsg.substring(25, 30);
-        }
-
-        @Override
-        public String getTag() {
-            int tEnd = mMsg.indexOf(':', 34);
-            return tEnd > 0 ? mMsg.substring(33, tEnd) : "";
-        }
-
-        @Override
-        public String getContent() {
-            int tEnd = mMsg.indexOf(':', 34);
-            if (tEnd + 2 <= mMsg.length()) {
-                return mMsg.substring(tEnd + 2);
-            }
-            return "";
-        }
-    }
-
-    public static class DeviceLine extends DefaultLine {
-        private String mTmpTag;
-
-        public DeviceLine(String line) {
-            super(line);
-        }
-
-        @Override
-        public String getTimeString() {
-            return mMsg.length() > 17 ? mMsg.substring(0, 18) : "";
-        }
-
-        public char getLevelChar() {
-            return mMsg.charAt(FORMAT_LOGCAT_LEVEL_POS);
-        }
-
-        @Override
-        public String getTag() {
-            if (mTmpTag != null) {
-                return mTmpTag;
-            }
-            int tEnd = mMsg.indexOf(':', 34);
-            return mTmpTag = (tEnd > 0 ? mMsg.substring(33, tEnd).trim() : "");
-        }
-
-        @Override
-        public String getContent() {
-            int tEnd = mMsg.indexOf(':', 34);
-            if (tEnd + 2 <= mMsg.length()) {
-                return mMsg.substring(tEnd + 2);
-            }
-            return "";
-        }
-    }
-
-    static class DeviceForUI extends DeviceLine {
-        static enum Level {
-            V('V', "V", 0, Color.BLACK),
-            D('D', "D", 1, Color.BLUE),
-            I('I', "I", 2, sMyGreen),
-            W('W', "W", 3, sMyOrange),
-            E('E', "E", 4, Color.RED),
-            F('F', "F", 5, Color.DARK_GRAY);
-            public final char label;
-            public final String text;
-            public final int value;
-            public final Color color;
-            Level(char l, String t, int v, Color c) {
-                label = l;
-                text = t;
-                value = v;
-                color = c;
-            }
-        }
-        final static Level[] sLogLevels = Level.values();
-        final static Level[] sLogLevelMap = new Level[128];
-
-        static {
-            for (Level l : sLogLevels) {
-                sLogLevelMap[l.label - 'A'] = l;
-            }
-        }
-
-        static Level getLevelByString(String str) {
-            if (str.length() > FORMAT_LOGCAT_LEVEL_POS) {
-                int levelChar = str.charAt(FORMAT_LOGCAT_LEVEL_POS) - 'A';
-                if (levelChar > 0 && levelChar < sLogLevelMap.length) {
-                    return  sLogLevelMap[levelChar];
-                }
-            }
-            return Level.V;
-        }
-
-        Level mLevel;
-
-        DeviceForUI(String rawLine, Level l, Color c) {
-            super(rawLine);
-            mLevel = l;
-        }
-
-        DeviceForUI(String rawLine) {
-            super(rawLine);
-            mLevel = getLevelByString(rawLine);
-        }
-
-        @Override
-        public Color getColor() {
-            return mLevel.color;
-        }
-    }
-}
-
 class FlagUtil {
 
     static ActivityIntentFlag[] ActivityIntentFlags = ActivityIntentFlag.values();
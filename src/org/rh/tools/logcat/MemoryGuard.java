@@ -0,0 +1,224 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2014 Riddle Hsu
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rh.tools.logcat;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.Locale;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+import org.rh.util.LLog;
+
+/**
+ * Watches the old generation of the heap. When it stays above the given fraction of its
+ * maximum after a collection, {@link LogcatPlus#relieveMemory(String)} is asked to give up the
+ * oldest lines, so a long capture degrades instead of running out of memory. Once the usage is
+ * back under the threshold, {@link LogcatPlus#restoreMemory()} gives the lines back step by
+ * step. The text of the lines is in direct buffers which the heap pool does not see, their usage
+ * is held to the same fraction of the maximum direct memory.
+ */
+class MemoryGuard implements NotificationListener {
+    final static int[] PERCENTS = { 60, 70, 80, 90 };
+
+    private final LogcatPlus mL;
+    private final MemoryPoolMXBean mPool;
+    private final boolean mAfterCollection;
+    private final BufferPoolMXBean mDirect;
+    private final long mMaxDirect;
+    private volatile int mPercent;
+    // Collections when the direct buffers last asked for relief
+    private long mCollections = -1;
+
+    MemoryGuard(LogcatPlus logger, int percent) {
+        mL = logger;
+        mDirect = findDirectPool();
+        mMaxDirect = maxDirectMemory();
+        mPercent = percent;
+        mPool = findTenuredPool();
+        mAfterCollection = mPool != null && mPool.isCollectionUsageThresholdSupported();
+        if (mPool == null) {
+            LLog.i("MemoryGuard: no heap pool supports a usage threshold");
+            return;
+        }
+        setPercent(percent);
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(
+                this, null, null);
+    }
+
+    // The heap pool which is collected last, its usage is what is really kept
+    private static MemoryPoolMXBean findTenuredPool() {
+        MemoryPoolMXBean found = null;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP || !pool.isUsageThresholdSupported()) {
+                continue;
+            }
+            String name = pool.getName();
+            if (name.contains("Old") || name.contains("Tenured")) {
+                return pool;
+            }
+            if (found == null || pool.getUsage().getMax() > found.getUsage().getMax()) {
+                found = pool;
+            }
+        }
+        return found;
+    }
+
+    private static BufferPoolMXBean findDirectPool() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(
+                BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                return pool;
+            }
+        }
+        return null;
+    }
+
+    // -XX:MaxDirectMemorySize if given, else the maximum heap as HotSpot does
+    private static long maxDirectMemory() {
+        final String option = "-XX:MaxDirectMemorySize=";
+        for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (!arg.startsWith(option)) {
+                continue;
+            }
+            String size = arg.substring(option.length()).trim().toLowerCase(Locale.US);
+            long unit = 1;
+            int suffix = "kmg".indexOf(size.isEmpty() ? ' ' : size.charAt(size.length() - 1));
+            if (suffix >= 0) {
+                unit = 1L << (10 * (suffix + 1));
+                size = size.substring(0, size.length() - 1);
+            }
+            try {
+                long max = Long.parseLong(size) * unit;
+                if (max > 0) {
+                    return max;
+                }
+            } catch (NumberFormatException e) {
+                LLog.e("MemoryGuard: cannot read " + arg);
+            }
+        }
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    private static long collectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    int getPercent() {
+        return mPercent;
+    }
+
+    void setPercent(int percent) {
+        mPercent = percent;
+        if (mPool == null) {
+            return;
+        }
+        long max = mPool.getUsage().getMax();
+        if (max <= 0) {
+            max = Runtime.getRuntime().maxMemory();
+        }
+        long threshold = max / 100 * percent;
+        if (mAfterCollection) {
+            mPool.setCollectionUsageThreshold(threshold);
+        } else {
+            mPool.setUsageThreshold(threshold);
+        }
+    }
+
+    /**
+     * Returns how far the usage is under the threshold, after the last collection if the pool
+     * tells it, and the direct buffers under theirs. 0 when over it or when nothing is watched.
+     */
+    long getRoom() {
+        if (mPool == null) {
+            return 0;
+        }
+        MemoryUsage usage = mAfterCollection ? mPool.getCollectionUsage() : mPool.getUsage();
+        long threshold = mAfterCollection ? mPool.getCollectionUsageThreshold()
+                : mPool.getUsageThreshold();
+        long room = usage == null ? 0 : Math.max(0, threshold - usage.getUsed());
+        if (mDirect != null) {
+            room = Math.min(room,
+                    Math.max(0, mMaxDirect / 100 * mPercent - mDirect.getMemoryUsed()));
+        }
+        return room;
+    }
+
+    /**
+     * Called every second on the thread of {@link LogcatPlus#relieveMemory(String)}. Returns why
+     * the direct buffers need relief, or null. The buffers of dropped lines are only freed by a
+     * collection, so it is not asked again before one.
+     */
+    String checkDirect() {
+        if (mDirect == null) {
+            return null;
+        }
+        final long used = mDirect.getMemoryUsed();
+        if (used <= mMaxDirect / 100 * mPercent) {
+            return null;
+        }
+        long collections = collectionCount();
+        if (collections == mCollections) {
+            return null;
+        }
+        mCollections = collections;
+        return "direct buffers at " + (used >> 20) + " of " + (mMaxDirect >> 20)
+                + " MB, over " + mPercent + "%";
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        String type = notification.getType();
+        if (!MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(type)
+                && !MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(type)) {
+            return;
+        }
+        MemoryUsage usage = mAfterCollection ? mPool.getCollectionUsage() : mPool.getUsage();
+        final String reason = mPool.getName() + " at " + (usage.getUsed() >> 20) + " of "
+                + (usage.getMax() >> 20) + " MB after "
+                + (mAfterCollection ? "collection" : "allocation") + ", over " + mPercent + "%";
+        LogcatPlus.sRerfeshEs.execute(new Runnable() {
+            @Override
+            public void run() {
+                mL.relieveMemory(reason);
+            }
+        });
+    }
+}
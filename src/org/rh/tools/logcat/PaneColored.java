@@ -34,7 +34,9 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 import javax.swing.JMenu;
 import javax.swing.JMenuItem;
@@ -58,11 +60,47 @@ public class PaneColored extends JTextPane implements LogcatPlus.LoggerPane,
     private boolean mIsAutoScroll = true;
     private final StyleContext mSc;
     private final HashMap<Color, AttributeSet> mAttrColorCache = new HashMap<>();
-    private final DefaultStyledDocument mDoc;
+    private final LogDocument mDoc;
+
+    /**
+     * Document which can append many lines of different colors in one insertion, so the views
+     * are updated once instead of once per line.
+     */
+    static class LogDocument extends DefaultStyledDocument {
+        private static final long serialVersionUID = 1L;
+
+        private final ArrayList<ElementSpec> mSpecs = new ArrayList<>(256);
+
+        void appendLines(List<? extends LogLine> lines, PaneColored pane)
+                throws BadLocationException {
+            final int offset = getLength();
+            AttributeSet pattr = getParagraphElement(offset).getAttributes();
+            if (offset > 0 && getText(offset - 1, 1).charAt(0) == '\n') {
+                // Close the paragraph of the last line like insertString does after a newline
+                mSpecs.add(new ElementSpec(pattr, ElementSpec.EndTagType));
+                mSpecs.add(new ElementSpec(pattr, ElementSpec.StartTagType));
+            }
+            for (int i = 0, s = lines.size(); i < s; i++) {
+                LogLine line = lines.get(i);
+                char[] text = new char[line.mMsg.length() + 1];
+                line.mMsg.getChars(0, text.length - 1, text, 0);
+                text[text.length - 1] = '\n';
+                mSpecs.add(new ElementSpec(pane.getAttributeSet(line.getColor()),
+                        ElementSpec.ContentType, text, 0, text.length));
+                mSpecs.add(new ElementSpec(null, ElementSpec.EndTagType));
+                mSpecs.add(new ElementSpec(pattr, ElementSpec.StartTagType));
+            }
+            try {
+                insert(offset, mSpecs.toArray(new ElementSpec[mSpecs.size()]));
+            } finally {
+                mSpecs.clear();
+            }
+        }
+    }
 
     public PaneColored() {
-        super(new DefaultStyledDocument());
-        mDoc = (DefaultStyledDocument) getDocument();
+        super(new LogDocument());
+        mDoc = (LogDocument) getDocument();
         mSc = StyleContext.getDefaultStyleContext();
 
         final JPopupMenu popMenu = new JPopupMenu();
@@ -138,6 +176,25 @@ public class PaneColored extends JTextPane implements LogcatPlus.LoggerPane,
         }
     }
 
+    @Override
+    public void appendLines(List<? extends LogLine> lines) {
+        if (lines.isEmpty()) {
+            return;
+        }
+        int len = getLength();
+        int selEnd = getSelectionEnd();
+        if (selEnd != getLength() && selEnd == getSelectionStart()) {
+            setCaretPosition(len);
+            setCharacterAttributes(getAttributeSet(lines.get(0).getColor()), false);
+        }
+
+        try {
+            mDoc.appendLines(lines, this);
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
+    }
+
     @Override
     public void paintTextBackground(Color color, int start, int end) {
         AttributeSet aset = StyleContext.getDefaultStyleContext().addAttribute(
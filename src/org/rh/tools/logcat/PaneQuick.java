@@ -33,6 +33,7 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.util.List;
 
 import javax.swing.JMenuItem;
 import javax.swing.JPopupMenu;
@@ -84,6 +85,15 @@ public class PaneQuick extends JTextArea implements LogcatPlus.LoggerPane,
         }
     }
 
+    @Override
+    public void appendLines(List<? extends LogLine> lines) {
+        StringBuilder sb = new StringBuilder(lines.size() * 100);
+        for (int i = 0, s = lines.size(); i < s; i++) {
+            sb.append(lines.get(i).mMsg).append('\n');
+        }
+        append(sb.toString());
+    }
+
     public void paintTextBackground(Color color, int start, int end) {
 
     }
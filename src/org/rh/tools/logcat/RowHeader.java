@@ -0,0 +1,265 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2014 Riddle Hsu
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.rh.tools.logcat;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Insets;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.HashMap;
+
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import javax.swing.border.Border;
+import javax.swing.border.CompoundBorder;
+import javax.swing.border.EmptyBorder;
+import javax.swing.border.MatteBorder;
+import javax.swing.event.CaretEvent;
+import javax.swing.event.CaretListener;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.JTextComponent;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.Utilities;
+
+class RowHeader extends JPanel implements CaretListener, DocumentListener, PropertyChangeListener {
+    private final static Border OUTER = new MatteBorder(0, 0, 0, 2, Color.GRAY);
+    private final static int NUM_HEIGHT = Integer.MAX_VALUE - 1000000;
+
+    private JTextComponent mComponent;
+    private Document mDoc;
+    private Element mRoot;
+    private boolean mUpdateFont;
+    private boolean mForceUpdateWidth;
+    private int mMinimumDisplayDigits = 3;
+
+    private int mLastDigits;
+    private int mLastHeight;
+    private int mLastLine;
+    private Point mTmpPoint = new Point(0, 0);
+
+    private HashMap<String, FontMetrics> mFonts;
+    private Runnable mCheckHeight;
+
+    public RowHeader(JTextComponent c) {
+        mComponent = c;
+        mDoc = c.getDocument();
+        mRoot = mDoc.getDefaultRootElement();
+        mDoc.addDocumentListener(this);
+        setFont(c.getFont());
+        setBorderGap(5);
+        c.addCaretListener(this);
+        c.addPropertyChangeListener("font", this);
+        mCheckHeight = new Runnable() {
+            @Override
+            public void run() {
+                int preferredHeight = mComponent.getPreferredSize().height;
+                if (mLastHeight != preferredHeight) {
+                    setPreferredWidth();
+                    repaint();
+                    mLastHeight = preferredHeight;
+                }
+            }
+        };
+    }
+
+    public boolean getUpdateFont() {
+        return mUpdateFont;
+    }
+
+    public void setUpdateFont(boolean updateFont) {
+        mUpdateFont = updateFont;
+    }
+
+    public void updateFont(Font font) {
+        setFont(font);
+        mForceUpdateWidth = true;
+        setPreferredWidth();
+        mForceUpdateWidth = false;
+    }
+
+    public void setBorderGap(int borderGap) {
+        Border inner = new EmptyBorder(0, borderGap, 0, borderGap);
+        setBorder(new CompoundBorder(OUTER, inner));
+        mLastDigits = 0;
+        setPreferredWidth();
+    }
+
+    private void setPreferredWidth() {
+        int lines = mRoot.getElementCount();
+        int digits = Math.max(String.valueOf(lines).length(), mMinimumDisplayDigits);
+
+        if (mLastDigits != digits || mForceUpdateWidth) {
+            mLastDigits = digits;
+            FontMetrics fontMetrics = getFontMetrics(getFont());
+            int width = fontMetrics.charWidth('0') * digits;
+            Insets insets = getInsets();
+            int preferredWidth = insets.left + insets.right + width;
+
+            Dimension d = getPreferredSize();
+            d.setSize(preferredWidth, NUM_HEIGHT);
+
+            setPreferredSize(d);
+            setSize(d);
+        }
+    }
+
+    @Override
+    public void paintComponent(Graphics g) {
+        super.paintComponent(g);
+
+        FontMetrics fontMetrics = mComponent.getFontMetrics(mComponent.getFont());
+        //int fontHeight = fontMetrics.getHeight();
+        Insets insets = getInsets();
+        int availableWidth = getSize().width - insets.left - insets.right;
+
+        Rectangle clip = g.getClipBounds();
+        mTmpPoint.setLocation(0, clip.y);
+        int rowStartOffset = mComponent.viewToModel(mTmpPoint);
+        mTmpPoint.setLocation(0, clip.y + clip.height);
+        int endOffset = mComponent.viewToModel(mTmpPoint);
+
+        while (rowStartOffset <= endOffset) {
+            try {
+                int index = mRoot.getElementIndex(rowStartOffset);
+                Element line = mRoot.getElement(index);
+
+                String lineNumber = line.getStartOffset() == rowStartOffset ?
+                        String.valueOf(index + 1) : "";
+                int stringWidth = fontMetrics.stringWidth(lineNumber);
+                if (stringWidth > 0) {
+                    int x = (int) ((availableWidth - stringWidth) * 1) + insets.left;
+                    int y = getOffsetY(rowStartOffset, fontMetrics);
+
+                    int len = line.getEndOffset() - line.getStartOffset();
+                    String log = mDoc.getText(line.getStartOffset(), len);
+                    if (log.length() > 2) {
+                        g.setColor(LogLine.DeviceForUI.getLevelByString(log).color);
+                        g.drawString(lineNumber, x, y);
+                        //g.drawRect(x - 2, y - fontHeight + 4, stringWidth + 2, fontHeight - 2);
+                        g.drawLine(x, y + 2, stringWidth + 4, y + 2);
+                    }
+                }
+
+                rowStartOffset = Utilities.getRowEnd(mComponent, rowStartOffset) + 1;
+            } catch (BadLocationException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private int getOffsetY(int rowStartOffset, FontMetrics fontMetrics) throws BadLocationException {
+        Rectangle r = mComponent.modelToView(rowStartOffset);
+        int lineHeight = fontMetrics.getHeight();
+        int y = r.y + r.height;
+        int descent = 0;
+
+        if (r.height == lineHeight) {
+            descent = fontMetrics.getDescent();
+        } else {
+            if (mFonts == null) {
+                mFonts = new HashMap<>();
+            }
+
+            int index = mRoot.getElementIndex(rowStartOffset);
+            Element line = mRoot.getElement(index);
+
+            for (int i = 0; i < line.getElementCount(); i++) {
+                Element child = line.getElement(i);
+                AttributeSet as = child.getAttributes();
+                String fontFamily = (String) as.getAttribute(StyleConstants.FontFamily);
+                Integer fontSize = (Integer) as.getAttribute(StyleConstants.FontSize);
+                String key = fontFamily + fontSize;
+                FontMetrics fm = mFonts.get(key);
+                if (fm == null) {
+                    Font font = new Font(fontFamily, Font.PLAIN, fontSize);
+                    fm = mComponent.getFontMetrics(font);
+                    mFonts.put(key, fm);
+                }
+                descent = Math.max(descent, fm.getDescent());
+            }
+        }
+
+        return y - descent;
+    }
+
+    @Override
+    public void caretUpdate(CaretEvent e) {
+        int caretPosition = mComponent.getCaretPosition();
+        int currentLine = mRoot.getElementIndex(caretPosition);
+        if (mLastLine != currentLine) {
+            repaint();
+            mLastLine = currentLine;
+        }
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent e) {
+        documentChanged();
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent e) {
+        documentChanged();
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e) {
+        documentChanged();
+    }
+
+    private void documentChanged() {
+        SwingUtilities.invokeLater(mCheckHeight);
+    }
+
+    @Override
+    public void propertyChange(PropertyChangeEvent evt) {
+        if (evt.getNewValue() instanceof Font) {
+            if (mUpdateFont) {
+                Font newFont = (Font) evt.getNewValue();
+                setFont(newFont);
+                mLastDigits = 0;
+                setPreferredWidth();
+            } else {
+                repaint();
+            }
+        }
+    }
+}
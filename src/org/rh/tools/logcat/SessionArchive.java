@@ -0,0 +1,489 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2014 Riddle Hsu
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rh.tools.logcat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A saved capture of one device. It is written sequentially and read back by mapping it, only
+ * the index and the tags are read when it is opened, the blocks are read when they are shown.
+ *
+ * <pre>
+ * header:  int magic, int version
+ * block:   long[n] time, int[n] pid, int[n] tid, byte[n] level, int[n] tag, int[n] message
+ *          start, int[n] text length, the UTF-8 text of the n lines deflated
+ * tags:    int count, then for each id from 0: int length, UTF-8 bytes
+ * times:   the {@link TimeIndex} of the lines, see {@link TimeIndex#write()}
+ * index:   for each block: long offset, long first index, int line count, long min time,
+ *          long max time, int[6] line count by level, int raw text length, int deflated length
+ * trailer: long tags offset, long times offset, long index offset, int block count, int magic
+ * </pre>
+ *
+ * A block has the lines of one segment of the store. The columns are not compressed so the
+ * level and time of a block can be read without inflating its text. Version 1 has no times,
+ * its trailer has no times offset.
+ */
+class SessionArchive {
+    final static int MAGIC = 0x4c435053; // "LCPS"
+    final static int VERSION = 2;
+    final static int LEVELS = LogSpill.LEVELS;
+    final static int INDEX_ENTRY_LENGTH = 8 + 8 + 4 + 8 + 8 + 4 * LEVELS + 4 + 4;
+    final static int TRAILER_LENGTH = 8 + 8 + 8 + 4 + 4;
+    final static int TRAILER_LENGTH_1 = 8 + 8 + 4 + 4;
+    // Bytes of the columns of one line
+    final static int COLUMNS_LENGTH = 8 + 4 + 4 + 1 + 4 + 4 + 4;
+    // A mapping covers whole blocks up to this length
+    final static long MAX_MAPPING = 1L << 30;
+
+    private final File mFile;
+    private final FileChannel mChannel;
+    final LogSpill.Entry[] mEntries;
+    private final long[] mOffsets;
+    private final int[] mRawLengths;
+    private final int[] mPackedLengths;
+    // Where the time index is in the file, -1 if it has none
+    private final long mTimesOffset;
+    private final int mTimesLength;
+    // Tag ids of the archive to tag ids of LogLine.sTags
+    private final int[] mTagIds;
+    // Mapping of each block, and the start of each mapping in the file
+    private final int[] mBlockMapping;
+    private final long[] mMappingStarts;
+    private final MappedByteBuffer[] mMappings;
+
+    private SessionArchive(File file, FileChannel channel, LogSpill.Entry[] entries,
+            long[] offsets, int[] rawLengths, int[] packedLengths, int[] tagIds, long end,
+            long timesOffset, int timesLength) {
+        mFile = file;
+        mChannel = channel;
+        mEntries = entries;
+        mOffsets = offsets;
+        mRawLengths = rawLengths;
+        mPackedLengths = packedLengths;
+        mTimesOffset = timesOffset;
+        mTimesLength = timesLength;
+        mTagIds = tagIds;
+        mBlockMapping = new int[entries.length];
+        long[] starts = new long[entries.length + 1];
+        int mappings = 0;
+        for (int b = 0; b < entries.length; b++) {
+            long blockEnd = b + 1 < entries.length ? offsets[b + 1] : end;
+            if (mappings == 0 || blockEnd - starts[mappings - 1] > MAX_MAPPING) {
+                starts[mappings++] = offsets[b];
+            }
+            mBlockMapping[b] = mappings - 1;
+        }
+        starts[mappings] = end;
+        mMappingStarts = Arrays.copyOf(starts, mappings + 1);
+        mMappings = new MappedByteBuffer[mappings];
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /** Index after the last line of the archive. */
+    long end() {
+        return mEntries.length == 0 ? 0
+                : mEntries[mEntries.length - 1].mFirst + mEntries[mEntries.length - 1].mCount;
+    }
+
+    /** Reads the index and the tags of the file and maps it. */
+    static SessionArchive open(File file) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            final long size = channel.size();
+            ByteBuffer head = read(channel, 0, 8);
+            if (size < 8 + TRAILER_LENGTH_1 || head.getInt() != MAGIC) {
+                throw new IOException("Not a session archive: " + file);
+            }
+            final int version = head.getInt();
+            if (version != VERSION && version != 1) {
+                throw new IOException("Unknown version of " + file);
+            }
+            final int trailerLength = version == 1 ? TRAILER_LENGTH_1 : TRAILER_LENGTH;
+            ByteBuffer trailer = read(channel, size - trailerLength, trailerLength);
+            final long tagsOffset = trailer.getLong();
+            final long timesOffset = version == 1 ? -1 : trailer.getLong();
+            final long indexOffset = trailer.getLong();
+            final int blocks = trailer.getInt();
+            if (trailer.getInt() != MAGIC) {
+                throw new IOException("Truncated session archive: " + file);
+            }
+            final long tagsEnd = timesOffset >= 0 ? timesOffset : indexOffset;
+
+            ByteBuffer tags = read(channel, tagsOffset, (int) (tagsEnd - tagsOffset));
+            int[] tagIds = new int[tags.getInt()];
+            for (int i = 0; i < tagIds.length; i++) {
+                int length = tags.getInt();
+                String tag = new String(tags.array(), tags.position(), length, LogStore.UTF_8);
+                tags.position(tags.position() + length);
+                tagIds[i] = LogLine.sTags.idOf(tag);
+            }
+
+            ByteBuffer index = read(channel, indexOffset, blocks * INDEX_ENTRY_LENGTH);
+            LogSpill.Entry[] entries = new LogSpill.Entry[blocks];
+            long[] offsets = new long[blocks];
+            int[] rawLengths = new int[blocks];
+            int[] packedLengths = new int[blocks];
+            for (int b = 0; b < blocks; b++) {
+                offsets[b] = index.getLong();
+                long first = index.getLong();
+                int count = index.getInt();
+                long minTime = index.getLong();
+                long maxTime = index.getLong();
+                int[] levels = new int[LEVELS];
+                for (int v = 0; v < LEVELS; v++) {
+                    levels[v] = index.getInt();
+                }
+                rawLengths[b] = index.getInt();
+                packedLengths[b] = index.getInt();
+                entries[b] = new LogSpill.Entry(first, count, minTime, maxTime, levels, null);
+            }
+            SessionArchive archive = new SessionArchive(file, channel, entries, offsets,
+                    rawLengths, packedLengths, tagIds, tagsOffset, timesOffset,
+                    (int) (indexOffset - timesOffset));
+            for (int b = 0; b < blocks; b++) {
+                entries[b].mArchive = archive;
+                entries[b].mOffset = b;
+            }
+            return archive;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long pos, int length)
+            throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) < 0) {
+                throw new IOException("Unexpected end of file at " + pos);
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /** Closes the file, the blocks cannot be read any more. */
+    synchronized void close() throws IOException {
+        // The mappings are released when they are collected
+        Arrays.fill(mMappings, null);
+        mChannel.close();
+    }
+
+    private synchronized ByteBuffer mapping(int block) throws IOException {
+        int m = mBlockMapping[block];
+        if (mMappings[m] == null) {
+            mMappings[m] = mChannel.map(FileChannel.MapMode.READ_ONLY, mMappingStarts[m],
+                    mMappingStarts[m + 1] - mMappingStarts[m]);
+        }
+        ByteBuffer buf = mMappings[m].duplicate();
+        buf.position((int) (mOffsets[block] - mMappingStarts[m]));
+        return buf;
+    }
+
+    /**
+     * Reads the time index of the lines into index. Returns false if the archive has none, the
+     * times of the blocks are then read by {@link #readTimes(int)}.
+     */
+    boolean readTimeIndex(TimeIndex index) throws IOException {
+        if (mTimesOffset < 0) {
+            return false;
+        }
+        index.read(read(mChannel, mTimesOffset, mTimesLength));
+        return true;
+    }
+
+    /** Reads the times of a block, for the time index of an archive of version 1. */
+    long[] readTimes(int block) throws IOException {
+        ByteBuffer in = mapping(block);
+        long[] times = new long[mEntries[block].mCount];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = in.getLong();
+        }
+        return times;
+    }
+
+    /** Decodes the lines of a block. */
+    LogLine.DeviceForUI[] load(LogSpill.Entry entry) throws IOException {
+        final int block = (int) entry.mOffset;
+        final int count = entry.mCount;
+        final ByteBuffer in = mapping(block);
+        final int columns = in.position();
+        byte[] packed = new byte[mPackedLengths[block]];
+        in.position(columns + count * COLUMNS_LENGTH);
+        in.get(packed);
+        byte[] raw = new byte[mRawLengths[block]];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(packed);
+            int n = 0;
+            while (n < raw.length && !inflater.finished()) {
+                n += inflater.inflate(raw, n, raw.length - n);
+                if (inflater.needsInput()) {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+
+        LogLine.DeviceForUI[] lines = new LogLine.DeviceForUI[count];
+        final int pidAt = columns + 8 * count;
+        final int tidAt = pidAt + 4 * count;
+        final int levelAt = tidAt + 4 * count;
+        final int tagAt = levelAt + count;
+        final int msgAt = tagAt + 4 * count;
+        final int lengthAt = msgAt + 4 * count;
+        int textPos = 0;
+        for (int i = 0; i < count; i++) {
+            int length = in.getInt(lengthAt + 4 * i);
+            String text = new String(raw, textPos, length, LogStore.UTF_8);
+            textPos += length;
+            int tag = in.getInt(tagAt + 4 * i);
+            lines[i] = new LogLine.DeviceForUI(text, in.getLong(columns + 8 * i),
+                    in.getInt(pidAt + 4 * i), in.getInt(tidAt + 4 * i),
+                    (char) in.get(levelAt + i), tag < mTagIds.length ? mTagIds[tag] : 0,
+                    in.getInt(msgAt + 4 * i));
+            lines[i].mIndex = entry.mFirst + i;
+        }
+        return lines;
+    }
+
+    /**
+     * Writes the spilled and stored lines of the log to the file, block by block in the order
+     * of the file.
+     */
+    static void save(LogStore logs, File file) throws IOException {
+        try (FileChannel out = new FileOutputStream(file).getChannel()) {
+            new Writer(out).write(logs);
+        }
+    }
+
+    private static class Writer {
+        private final FileChannel mOut;
+        private final ByteBuffer mBuf = ByteBuffer.allocateDirect(1 << 20);
+        private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+        private long mPos;
+        // Tag ids of LogLine.sTags to tag ids of the archive, -1 if not written yet
+        private int[] mTagIds = new int[256];
+        private int[] mTags = new int[256];
+        private int mTagCount;
+        private ByteBuffer mIndex = ByteBuffer.allocate(64 * INDEX_ENTRY_LENGTH);
+        private int mBlocks;
+        // Of the lines as numbered in the archive
+        private final TimeIndex mTimeIndex = new TimeIndex();
+        private final LogLine.DeviceForUI[] mBlock =
+                new LogLine.DeviceForUI[LogStore.SEGMENT_SIZE];
+        private int mBlockCount;
+        private long mNextIndex;
+
+        Writer(FileChannel out) {
+            mOut = out;
+            Arrays.fill(mTagIds, -1);
+        }
+
+        void write(LogStore logs) throws IOException {
+            mBuf.putInt(MAGIC).putInt(VERSION);
+            LogStore.Snapshot snapshot = logs.snapshot();
+            LogSpill spill = logs.mSpill;
+            for (int i = 0, s = spill.size(); i < s; i++) {
+                LogSpill.Entry entry = spill.get(i);
+                if (entry.mFirst >= snapshot.first()) {
+                    break;
+                }
+                for (LogLine.DeviceForUI line : spill.load(entry)) {
+                    if (line.mIndex < snapshot.first()) {
+                        add(line);
+                    }
+                }
+            }
+            for (long i = snapshot.first(), end = snapshot.end(); i < end; i++) {
+                add(snapshot.get(i));
+            }
+            flushBlock();
+
+            final long tagsOffset = mPos + mBuf.position();
+            put(4).putInt(mTagCount);
+            for (int i = 0; i < mTagCount; i++) {
+                byte[] tag = LogLine.sTags.get(mTags[i]).getBytes(LogStore.UTF_8);
+                put(4 + tag.length).putInt(tag.length).put(tag);
+            }
+            final long timesOffset = mPos + mBuf.position();
+            putAll(mTimeIndex.write());
+            final long indexOffset = mPos + mBuf.position();
+            mIndex.flip();
+            putAll(mIndex);
+            put(TRAILER_LENGTH).putLong(tagsOffset).putLong(timesOffset).putLong(indexOffset)
+                    .putInt(mBlocks).putInt(MAGIC);
+            drain();
+        }
+
+        private void putAll(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                int n = Math.min(src.remaining(), mBuf.capacity());
+                ByteBuffer part = src.duplicate();
+                part.limit(part.position() + n);
+                put(n).put(part);
+                src.position(src.position() + n);
+            }
+        }
+
+        private void add(LogLine.DeviceForUI line) throws IOException {
+            mBlock[mBlockCount++] = line;
+            if (mBlockCount == mBlock.length) {
+                flushBlock();
+            }
+        }
+
+        private int archiveTag(int id) {
+            if (id >= mTagIds.length) {
+                int length = mTagIds.length;
+                mTagIds = Arrays.copyOf(mTagIds, Math.max(id + 1, length * 2));
+                Arrays.fill(mTagIds, length, mTagIds.length, -1);
+            }
+            if (mTagIds[id] < 0) {
+                if (mTagCount == mTags.length) {
+                    mTags = Arrays.copyOf(mTags, mTagCount * 2);
+                }
+                mTags[mTagCount] = id;
+                mTagIds[id] = mTagCount++;
+            }
+            return mTagIds[id];
+        }
+
+        private void flushBlock() throws IOException {
+            final int count = mBlockCount;
+            if (count == 0) {
+                return;
+            }
+            mBlockCount = 0;
+            final long offset = mPos + mBuf.position();
+            int[] levels = new int[LEVELS];
+            long minTime = 0;
+            long maxTime = 0;
+            byte[][] texts = new byte[count][];
+            int rawLength = 0;
+            for (int i = 0; i < count; i++) {
+                LogLine.DeviceForUI line = mBlock[i];
+                levels[line.getLevel().value]++;
+                mTimeIndex.add(mNextIndex + i, line.mTime);
+                if (line.mTime != 0) {
+                    minTime = minTime == 0 ? line.mTime : Math.min(minTime, line.mTime);
+                    maxTime = Math.max(maxTime, line.mTime);
+                }
+                texts[i] = line.mMsg.getBytes(LogStore.UTF_8);
+                rawLength += texts[i].length;
+            }
+            for (int i = 0; i < count; i++) {
+                put(8).putLong(mBlock[i].mTime);
+            }
+            for (int i = 0; i < count; i++) {
+                put(4).putInt(mBlock[i].mPid);
+            }
+            for (int i = 0; i < count; i++) {
+                put(4).putInt(mBlock[i].mTid);
+            }
+            for (int i = 0; i < count; i++) {
+                put(1).put(mBlock[i].mLevel);
+            }
+            for (int i = 0; i < count; i++) {
+                put(4).putInt(archiveTag(mBlock[i].mTagId));
+            }
+            for (int i = 0; i < count; i++) {
+                put(4).putInt(mBlock[i].mMsgStart);
+            }
+            for (int i = 0; i < count; i++) {
+                put(4).putInt(texts[i].length);
+            }
+            byte[] raw = new byte[rawLength];
+            int pos = 0;
+            for (byte[] text : texts) {
+                System.arraycopy(text, 0, raw, pos, text.length);
+                pos += text.length;
+            }
+            mDeflater.reset();
+            mDeflater.setInput(raw);
+            mDeflater.finish();
+            byte[] packed = new byte[8192];
+            int packedLength = 0;
+            while (!mDeflater.finished()) {
+                int n = mDeflater.deflate(packed);
+                put(n).put(packed, 0, n);
+                packedLength += n;
+            }
+
+            if (mIndex.remaining() < INDEX_ENTRY_LENGTH) {
+                ByteBuffer grown = ByteBuffer.allocate(mIndex.capacity() * 2);
+                mIndex.flip();
+                grown.put(mIndex);
+                mIndex = grown;
+            }
+            mIndex.putLong(offset).putLong(mNextIndex).putInt(count).putLong(minTime)
+                    .putLong(maxTime);
+            for (int level : levels) {
+                mIndex.putInt(level);
+            }
+            mIndex.putInt(rawLength).putInt(packedLength);
+            mBlocks++;
+            mNextIndex += count;
+            Arrays.fill(mBlock, null);
+        }
+
+        // Makes room for length bytes in the buffer, length is at most its capacity
+        private ByteBuffer put(int length) throws IOException {
+            if (mBuf.remaining() < length) {
+                drain();
+            }
+            return mBuf;
+        }
+
+        private void drain() throws IOException {
+            mBuf.flip();
+            while (mBuf.hasRemaining()) {
+                mPos += mOut.write(mBuf);
+            }
+            mBuf.clear();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2014 Riddle Hsu
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rh.tools.logcat;
+
+import org.rh.util.StringUtil;
+
+/**
+ * Maps each distinct tag to a dense int id, so a line only keeps the id and the filters can
+ * decide by id. Looking up a known tag takes no lock and creates no object, only a new tag
+ * takes the lock. Ids are never removed, 0 is the empty tag.
+ */
+class TagDictionary {
+    private final static int INITIAL_CAPACITY = 1024;
+
+    static final class Entry {
+        final String mTag;
+        final int mHash;
+        final int mId;
+
+        Entry(String tag, int hash, int id) {
+            mTag = tag;
+            mHash = hash;
+            mId = id;
+        }
+    }
+
+    // Open addressing by hash, load factor at most 1/2. A slot may be seen as null by a reader
+    // that races with the writer, then the reader retries under the lock.
+    private volatile Entry[] mTable = new Entry[INITIAL_CAPACITY * 2];
+    private volatile Entry[] mById = new Entry[INITIAL_CAPACITY];
+    private volatile int mSize;
+
+    TagDictionary() {
+        add("", 0, 0, 0);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    int idOf(String tag) {
+        return idOf(tag, 0, tag.length());
+    }
+
+    int idOf(String src, int start, int end) {
+        final int hash = hash(src, start, end);
+        final Entry[] table = mTable;
+        final int mask = table.length - 1;
+        for (int i = hash & mask;; i = (i + 1) & mask) {
+            Entry e = table[i];
+            if (e == null) {
+                break;
+            }
+            if (e.mHash == hash && equals(e.mTag, src, start, end)) {
+                return e.mId;
+            }
+        }
+        synchronized (this) {
+            return add(src, start, end, hash);
+        }
+    }
+
+    String get(int id) {
+        Entry[] byId = mById;
+        Entry e = id < byId.length ? byId[id] : null;
+        if (e == null) {
+            synchronized (this) {
+                e = mById[id];
+            }
+        }
+        return e.mTag;
+    }
+
+    // Same as String.hashCode, so a String key hashes the same as its slice
+    private static int hash(String src, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + src.charAt(i);
+        }
+        return h;
+    }
+
+    private static boolean equals(String tag, String src, int start, int end) {
+        return tag.length() == end - start && src.regionMatches(start, tag, 0, end - start);
+    }
+
+    // Must hold the lock
+    private int add(String src, int start, int end, int hash) {
+        Entry[] table = mTable;
+        int mask = table.length - 1;
+        int i = hash & mask;
+        for (Entry e; (e = table[i]) != null; i = (i + 1) & mask) {
+            if (e.mHash == hash && equals(e.mTag, src, start, end)) {
+                return e.mId;
+            }
+        }
+        final int id = mSize;
+        Entry e = new Entry(src.substring(start, end), hash, id);
+        Entry[] byId = mById;
+        if (id == byId.length) {
+            Entry[] grown = new Entry[byId.length * 2];
+            System.arraycopy(byId, 0, grown, 0, byId.length);
+            byId = grown;
+        }
+        byId[id] = e;
+        mById = byId;
+        if ((id + 1) * 2 > table.length) {
+            table = new Entry[table.length * 2];
+            mask = table.length - 1;
+            for (Entry old : mTable) {
+                if (old != null) {
+                    int j = old.mHash & mask;
+                    while (table[j] != null) {
+                        j = (j + 1) & mask;
+                    }
+                    table[j] = old;
+                }
+            }
+            i = hash & mask;
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+        }
+        table[i] = e;
+        mTable = table;
+        mSize = id + 1;
+        return id;
+    }
+
+    Filter newFilter(String[] patterns) {
+        return new Filter(this, patterns);
+    }
+
+    /**
+     * A set of tag ids whose tag contains any of the patterns. The tags known when the filter is
+     * created are resolved at once, tags added later are resolved the first time they are asked.
+     */
+    static final class Filter {
+        private final TagDictionary mDict;
+        private final StringUtil.AhoCorasick mMatcher;
+        // Bit per id in [0, mResolved), replaced as a whole when more ids are resolved
+        private volatile long[] mBits = new long[0];
+        private volatile int mResolved;
+
+        Filter(TagDictionary dict, String[] patterns) {
+            mDict = dict;
+            mMatcher = patterns != null && patterns.length > 0
+                    ? new StringUtil.AhoCorasick(patterns) : null;
+            resolve(dict.size());
+        }
+
+        boolean matches(int id) {
+            if (id >= mResolved) {
+                resolve(id + 1);
+            }
+            long[] bits = mBits;
+            return (bits[id >> 6] & (1L << id)) != 0;
+        }
+
+        private synchronized void resolve(int count) {
+            final int from = mResolved;
+            count = Math.max(count, mDict.size());
+            if (count <= from) {
+                return;
+            }
+            long[] bits = mBits;
+            if ((count + 63) >> 6 > bits.length) {
+                long[] grown = new long[Math.max((count + 63) >> 6, bits.length * 2)];
+                System.arraycopy(bits, 0, grown, 0, bits.length);
+                bits = grown;
+            } else {
+                bits = bits.clone();
+            }
+            if (mMatcher != null) {
+                for (int id = from; id < count; id++) {
+                    if (mMatcher.contains(mDict.get(id))) {
+                        bits[id >> 6] |= 1L << id;
+                    }
+                }
+            }
+            mBits = bits;
+            mResolved = count;
+        }
+    }
+}
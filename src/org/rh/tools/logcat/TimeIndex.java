@@ -0,0 +1,211 @@
+/*
+ * [The "BSD licence"]
+ * Copyright (c) 2014 Riddle Hsu
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rh.tools.logcat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sparse index from the device time to the absolute index of the lines of a store, one entry
+ * every {@link #STEP} lines, spilled lines included. The device clock may go back, after a
+ * reboot or a time sync, so the entries are kept in runs. In a run the time of an entry is the
+ * highest time seen so far in the run, which keeps the run sorted for the binary search and
+ * tolerates the small reorders between the buffers.
+ */
+class TimeIndex {
+    final static int STEP = 128;
+    // A clock going back more than this starts a new run, less is taken as reordering
+    final static long JUMP_BACK = 2000;
+
+    /** Reads the time of a line, 0 if it has none. */
+    interface Times {
+        long timeAt(long index);
+    }
+
+    // Guarded by this
+    private long[] mTimes = new long[256];
+    private long[] mIndices = new long[256];
+    private int mCount;
+    // The first entry and the highest time of each run, the last run is still open
+    private int[] mRunStarts = new int[8];
+    private long[] mRunMaxes = new long[8];
+    private int mRuns;
+
+    // Used by the writer of the store only
+    private long mRunMax;
+    private long mLastEntry = Long.MIN_VALUE;
+
+    /** Called by the writer of the store for each line. */
+    void add(long index, long time) {
+        if (time == 0) {
+            return;
+        }
+        if (mRunMax == 0 || time < mRunMax - JUMP_BACK) {
+            addEntry(index, time, true);
+        } else if (time > mRunMax) {
+            mRunMax = time;
+        }
+        if (index - mLastEntry >= STEP) {
+            addEntry(index, mRunMax, false);
+        }
+    }
+
+    private synchronized void addEntry(long index, long time, boolean newRun) {
+        if (newRun) {
+            if (mRuns > 0) {
+                mRunMaxes[mRuns - 1] = mRunMax;
+            }
+            if (mRuns == mRunStarts.length) {
+                mRunStarts = grow(mRunStarts);
+                mRunMaxes = grow(mRunMaxes);
+            }
+            mRunStarts[mRuns++] = mCount;
+            mRunMax = time;
+        }
+        if (mCount == mTimes.length) {
+            mTimes = grow(mTimes);
+            mIndices = grow(mIndices);
+        }
+        mTimes[mCount] = time;
+        mIndices[mCount] = index;
+        mCount++;
+        mLastEntry = index;
+    }
+
+    synchronized void clear() {
+        mCount = mRuns = 0;
+        mRunMax = 0;
+        mLastEntry = Long.MIN_VALUE;
+    }
+
+    /**
+     * Returns the index as written in a saved session: int entry count, int run count, long
+     * highest time of the open run, long index of the last entry, then the time and the index
+     * of each entry, then the first entry and the highest time of each run.
+     */
+    synchronized ByteBuffer write() {
+        ByteBuffer out = ByteBuffer.allocate(4 + 4 + 8 + 8 + mCount * (8 + 8) + mRuns * (4 + 8));
+        out.putInt(mCount).putInt(mRuns).putLong(mRunMax).putLong(mLastEntry);
+        for (int i = 0; i < mCount; i++) {
+            out.putLong(mTimes[i]).putLong(mIndices[i]);
+        }
+        for (int r = 0; r < mRuns; r++) {
+            out.putInt(mRunStarts[r]).putLong(mRunMaxes[r]);
+        }
+        out.flip();
+        return out;
+    }
+
+    /** Replaces the index by one returned by {@link #write()}. */
+    synchronized void read(ByteBuffer in) {
+        final int count = in.getInt();
+        final int runs = in.getInt();
+        mRunMax = in.getLong();
+        mLastEntry = in.getLong();
+        mTimes = new long[Math.max(256, count)];
+        mIndices = new long[mTimes.length];
+        for (int i = 0; i < count; i++) {
+            mTimes[i] = in.getLong();
+            mIndices[i] = in.getLong();
+        }
+        mRunStarts = new int[Math.max(8, runs)];
+        mRunMaxes = new long[mRunStarts.length];
+        for (int r = 0; r < runs; r++) {
+            mRunStarts[r] = in.getInt();
+            mRunMaxes[r] = in.getLong();
+        }
+        mCount = count;
+        mRuns = runs;
+    }
+
+    /**
+     * Returns the absolute index of the first line at or after the given time, in the newest
+     * run of the clock which covers it, or in the first run after it. Returns -1 if the time is
+     * after every line or no line has a time. Lines which are gone since are not checked, the
+     * caller clamps the result to the lines it has.
+     */
+    long find(long time, Times times, long end) {
+        long from;
+        long to;
+        synchronized (this) {
+            int run = -1;
+            for (int r = mRuns - 1; r >= 0; r--) {
+                long first = mTimes[mRunStarts[r]];
+                long max = r == mRuns - 1 ? Long.MAX_VALUE : mRunMaxes[r];
+                if (first <= time && time <= max) {
+                    run = r;
+                    break;
+                }
+                if (first > time) {
+                    // The time is between runs, take the start of the later one
+                    run = r;
+                }
+            }
+            if (run < 0) {
+                return -1;
+            }
+            final int lo = mRunStarts[run];
+            final int hi = run == mRuns - 1 ? mCount : mRunStarts[run + 1];
+            // The last entry of the run before the time
+            int a = lo;
+            int b = hi - 1;
+            if (mTimes[lo] >= time) {
+                return mIndices[lo];
+            }
+            while (a < b) {
+                int m = (a + b + 1) >>> 1;
+                if (mTimes[m] < time) {
+                    a = m;
+                } else {
+                    b = m - 1;
+                }
+            }
+            from = mIndices[a];
+            to = a + 1 < mCount ? mIndices[a + 1] : end;
+        }
+        // The next entry is at or after the time, or starts the next run
+        for (long i = from; i < to; i++) {
+            if (times.timeAt(i) >= time) {
+                return i;
+            }
+        }
+        return to < end ? to : -1;
+    }
+
+    private static long[] grow(long[] a) {
+        long[] grown = new long[a.length * 2];
+        System.arraycopy(a, 0, grown, 0, a.length);
+        return grown;
+    }
+
+    private static int[] grow(int[] a) {
+        int[] grown = new int[a.length * 2];
+        System.arraycopy(a, 0, grown, 0, a.length);
+        return grown;
+    }
+}
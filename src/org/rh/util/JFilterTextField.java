@@ -139,6 +139,11 @@ public class JFilterTextField extends JTextField {
         return mRegExp != null && mRegExp.matcher(text).find();
     }
 
+    /** The compiled text of the regular expression mode, null if it is not valid. */
+    public Pattern getRegExp() {
+        return mRegExp;
+    }
+
     public int getLength() {
         return getDocument().getLength();
     }
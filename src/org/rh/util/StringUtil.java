@@ -31,7 +31,7 @@ package org.rh.util;
 import java.awt.Toolkit;
 import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.StringSelection;
-import java.util.LinkedList;
+import java.util.Arrays;
 
 public final class StringUtil {
     public static String ln = System.getProperty("line.separator", "\r\n");
@@ -61,116 +61,257 @@ public final class StringUtil {
         clipboard.setContents(stringSelection, null);
     }
 
-    public static class AhoCorasick {
-        final static int FIRST_VISIBLE_ASCII = 32;
-        final static int LAST_VISIBLE_ASCII = 126;
-        final static int TRIE_SIZE = LAST_VISIBLE_ASCII - FIRST_VISIBLE_ASCII + 1;
+    /** Folds the case of c, ASCII by table and the rest by Character, one char to one. */
+    public static char foldCase(char c) {
+        if (c < 0x80) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    /**
+     * Finds a string in text ignoring case, by Boyer-Moore-Horspool over case folded chars.
+     * The text is folded char by char as it is compared, so nothing is allocated and the
+     * positions found are those of the text.
+     */
+    public static final class IgnoreCaseMatcher {
+        private final static int SKIP_SIZE = 256;
+
+        private final char[] mNeedle;
+        // Shift by the last char of the window, chars are hashed by their low byte
+        private final int[] mSkip = new int[SKIP_SIZE];
+
+        public IgnoreCaseMatcher(String needle) {
+            mNeedle = new char[needle.length()];
+            for (int i = 0; i < mNeedle.length; i++) {
+                mNeedle[i] = foldCase(needle.charAt(i));
+            }
+            final int last = mNeedle.length - 1;
+            Arrays.fill(mSkip, Math.max(1, mNeedle.length));
+            for (int i = 0; i < last; i++) {
+                mSkip[mNeedle[i] & (SKIP_SIZE - 1)] = last - i;
+            }
+        }
 
-        private final static int TRIE_ROOT = 1;
-        private final static int TRIE_PATTERN = 2;
+        public int length() {
+            return mNeedle.length;
+        }
 
-        static class Trie {
-            Trie[] mNext = new Trie[TRIE_SIZE];
-            Trie mFailLink;
-            IntArray mPatternIdx = new IntArray(1);
-            int mVal;
+        public boolean find(CharSequence text) {
+            return indexOf(text, 0) >= 0;
         }
 
-        Trie mRoot;
+        /** Returns the index of the first match at or after from, or -1. */
+        public int indexOf(CharSequence text, int from) {
+            final char[] needle = mNeedle;
+            final int last = needle.length - 1;
+            if (last < 0) {
+                return from <= text.length() ? from : -1;
+            }
+            final char tail = needle[last];
+            for (int i = Math.max(from, 0), end = text.length() - last; i < end;) {
+                char c = foldCase(text.charAt(i + last));
+                if (c == tail) {
+                    int j = last - 1;
+                    while (j >= 0 && foldCase(text.charAt(i + j)) == needle[j]) {
+                        j--;
+                    }
+                    if (j < 0) {
+                        return i;
+                    }
+                }
+                i += mSkip[c & (SKIP_SIZE - 1)];
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Finds any of several strings in one pass over the text. The patterns are compiled to a
+     * complete automaton in an int table, indexed by state and by char class, so a char costs
+     * one lookup. Only the chars of the patterns have a class of their own, all others share
+     * class 0, which keeps the table small for any Unicode input.
+     */
+    public static class AhoCorasick {
+        private final static int ASCII = 128;
+
+        private boolean mIgnoreCase;
+        // Class of each ASCII char, and of the other chars of the patterns sorted by char
+        private final int[] mAsciiClass = new int[ASCII];
+        private char[] mOtherChars;
+        private int[] mOtherClass;
+        private int mClasses;
+        // mDelta[state * mClasses + class] is the next state, 0 is the root
+        private int[] mDelta;
+        // The patterns ending at each state are mOutIds[mOutStart[state], mOutStart[state + 1])
+        private int[] mOutStart;
+        private int[] mOutIds;
         String[] mPatterns;
 
         public AhoCorasick() {
+            this(new String[0]);
         }
 
         public AhoCorasick(String[] patterns) {
+            this(patterns, false);
+        }
+
+        public AhoCorasick(String[] patterns, boolean ignoreCase) {
+            mIgnoreCase = ignoreCase;
             rebuild(patterns);
         }
 
+        private char fold(char c) {
+            return mIgnoreCase ? foldCase(c) : c;
+        }
+
+        private int classOf(char c) {
+            if (c < ASCII) {
+                return mAsciiClass[c];
+            }
+            int i = Arrays.binarySearch(mOtherChars, c);
+            return i >= 0 ? mOtherClass[i] : 0;
+        }
+
         public void rebuild(String[] patterns) {
-            mRoot = new Trie();
-            mRoot.mVal = TRIE_ROOT;
             mPatterns = patterns;
 
+            // Char classes
+            Arrays.fill(mAsciiClass, 0);
+            int classes = 1;
+            StringBuilder others = new StringBuilder();
+            for (String p : patterns) {
+                for (int j = 0; j < p.length(); j++) {
+                    char c = fold(p.charAt(j));
+                    if (c < ASCII) {
+                        if (mAsciiClass[c] == 0) {
+                            mAsciiClass[c] = classes++;
+                        }
+                    } else if (others.indexOf(String.valueOf(c)) < 0) {
+                        others.append(c);
+                    }
+                }
+            }
+            mOtherChars = others.toString().toCharArray();
+            Arrays.sort(mOtherChars);
+            mOtherClass = new int[mOtherChars.length];
+            for (int i = 0; i < mOtherClass.length; i++) {
+                mOtherClass[i] = classes++;
+            }
+            mClasses = classes;
+
+            // Trie, -1 for no edge
+            int total = 1;
+            for (String p : patterns) {
+                total += p.length();
+            }
+            int[] next = new int[total * classes];
+            Arrays.fill(next, -1);
+            int[] ends = new int[total];
+            Arrays.fill(ends, -1);
+            // Patterns ending at the same state are chained
+            int[] sameEnd = new int[patterns.length];
+            int states = 1;
             for (int i = 0; i < patterns.length; i++) {
-                Trie r = mRoot, t = null;
                 String p = patterns[i];
+                int s = 0;
                 for (int j = 0; j < p.length(); j++) {
-                    int index = p.charAt(j) - FIRST_VISIBLE_ASCII;
-                    t = r.mNext[index];
-                    if (t == null) {
-                        t = new Trie();
+                    int e = s * classes + classOf(fold(p.charAt(j)));
+                    if (next[e] < 0) {
+                        next[e] = states++;
                     }
-                    t.mVal = TRIE_PATTERN;
-                    r.mNext[index] = t;
-                    r = t;
+                    s = next[e];
                 }
-                r.mPatternIdx.add(i);
+                sameEnd[i] = ends[s];
+                ends[s] = i;
             }
 
-            LinkedList<Trie> q = new LinkedList<>();
-            for (int i = 0; i < TRIE_SIZE; i++) {
-                if (mRoot.mNext[i] != null && mRoot.mNext[i].mVal > 0) {
-                    mRoot.mNext[i].mFailLink = mRoot;
-                    q.add(mRoot.mNext[i]);
+            // Failure links by breadth first order, which also completes the automaton
+            int[] fail = new int[states];
+            int[] queue = new int[states];
+            int head = 0;
+            int tail = 0;
+            for (int c = 0; c < classes; c++) {
+                int t = next[c];
+                if (t < 0) {
+                    next[c] = 0;
                 } else {
-                    mRoot.mNext[i] = mRoot;
+                    fail[t] = 0;
+                    queue[tail++] = t;
                 }
             }
-
-            Trie head = null;
-            while ((head = q.poll()) != null) {
-                for (int i = 0; i < TRIE_SIZE; i++) {
-                    Trie t = head;
-                    if (t.mNext[i] != null && (t.mNext[i].mVal > 0)) {
-                        q.add(t.mNext[i]);
-                        Trie f = t.mFailLink;
-
-                        while ((f.mNext[i] != null && f.mNext[i].mVal == 0) || f.mNext[i] == null) {
-                            f = f.mFailLink;
-                        }
-
-                        t.mNext[i].mFailLink = f.mNext[i];
-                        if (f.mNext[i].mPatternIdx.size() > 0) {
-                            for (int j = 0; j < f.mNext[i].mPatternIdx.size(); j++) {
-                                t.mNext[i].mPatternIdx.add(f.mNext[i].mPatternIdx.get(j));
-                            }
-                        }
+            while (head < tail) {
+                int s = queue[head++];
+                for (int c = 0; c < classes; c++) {
+                    int e = s * classes + c;
+                    int t = next[e];
+                    if (t < 0) {
+                        next[e] = next[fail[s] * classes + c];
+                    } else {
+                        fail[t] = next[fail[s] * classes + c];
+                        queue[tail++] = t;
                     }
                 }
             }
-        }
+            mDelta = Arrays.copyOf(next, states * classes);
 
-        public boolean contains(String text) {
-            return getMatchedPatternIndex(text, true) != null;
+            // Outputs of a state are its own patterns then those of its failure state, which
+            // comes earlier in the queue
+            mOutStart = new int[states + 1];
+            IntArray ids = new IntArray(patterns.length);
+            int[] outEnd = new int[states];
+            for (int q = -1; q < tail; q++) {
+                int s = q < 0 ? 0 : queue[q];
+                mOutStart[s] = ids.size();
+                for (int i = ends[s]; i >= 0; i = sameEnd[i]) {
+                    ids.add(i);
+                }
+                if (s != 0) {
+                    for (int k = mOutStart[fail[s]]; k < outEnd[fail[s]]; k++) {
+                        ids.add(ids.get(k));
+                    }
+                }
+                outEnd[s] = ids.size();
+            }
+            // Regroup by state so a state's range ends where the next one starts
+            int[] flat = ids.toArray();
+            mOutIds = new int[flat.length];
+            int pos = 0;
+            for (int s = 0; s < states; s++) {
+                int from = mOutStart[s];
+                int length = outEnd[s] - from;
+                System.arraycopy(flat, from, mOutIds, pos, length);
+                mOutStart[s] = pos;
+                pos += length;
+            }
+            mOutStart[states] = pos;
         }
 
-        public int[] getMatchedPatternIndex(String text) {
-            return getMatchedPatternIndex(text, false);
+        public boolean contains(CharSequence text) {
+            final int[] delta = mDelta;
+            final int[] outStart = mOutStart;
+            final int classes = mClasses;
+            int s = 0;
+            for (int i = 0, len = text.length(); i < len; i++) {
+                s = delta[s * classes + classOf(fold(text.charAt(i)))];
+                if (outStart[s] != outStart[s + 1]) {
+                    return true;
+                }
+            }
+            return false;
         }
 
-        private static final int[] FOUND = new int[0];
-
-        private int[] getMatchedPatternIndex(String text, boolean findAny) {
+        /** Returns the index of each pattern at each position where it ends, or null. */
+        public int[] getMatchedPatternIndex(CharSequence text) {
             IntArray res = null;
-            Trie p = mRoot;
+            int s = 0;
             for (int i = 0, len = text.length(); i < len; i++) {
-                int c = text.charAt(i) - FIRST_VISIBLE_ASCII;
-                if (c >= TRIE_SIZE) {
-                    System.out.println("strange char:" + c + " in " + text);
-                    continue;
-                }
-                while ((p.mNext[c] != null && (p.mNext[c].mVal == 0)) || (p.mNext[c] == null)) {
-                    p = p.mFailLink;
-                }
-                p = p.mNext[c];
-                for (int j = 0; j < p.mPatternIdx.size(); j++) {
-                    if (findAny) {
-                        return FOUND;
-                    }
+                s = mDelta[s * mClasses + classOf(fold(text.charAt(i)))];
+                for (int k = mOutStart[s]; k < mOutStart[s + 1]; k++) {
                     if (res == null) {
                         res = new IntArray(mPatterns.length);
                     }
-                    res.add(p.mPatternIdx.get(j));
+                    res.add(mOutIds[k]);
                 }
             }
             return res == null ? null : res.toArray();